@@ -0,0 +1,121 @@
+# Decoder for the packed results of GodotGooglePlayBilling (setPackedResults(true)).
+# Returns the same dictionaries as the regular signals.
+# The format is described in BillingBinaryEncoder.java.
+class_name GooglePlayBillingPacked
+
+const FORMAT_VERSION = 1
+const KIND_PRODUCT_DETAILS = 1
+const KIND_PURCHASES = 2
+
+const RECURRENCE_MODE_HINTS = {
+	1: "INFINITE_RECURRING",
+	2: "FINITE_RECURRING",
+	3: "NON_RECURRING",
+}
+
+
+static func decode_product_details(data: PackedByteArray) -> Array:
+	var buffer = _open(data, KIND_PRODUCT_DETAILS)
+	var products = []
+	if buffer == null:
+		return products
+	var count = buffer.get_32()
+	for i in count:
+		var product = {}
+		product["product_id"] = _read_string(buffer)
+		product["product_name"] = _read_string(buffer)
+		product["product_title"] = _read_string(buffer)
+		product["product_description"] = _read_string(buffer)
+		product["product_type"] = _read_string(buffer)
+		if buffer.get_u8() == 1:
+			product["product_one_time_purchase_offer"] = {
+				"billing_price_formatted": _read_string(buffer),
+				"billing_price_amount_micros": buffer.get_64(),
+				"billing_price_currency_codes": _read_string(buffer),
+			}
+		var offer_count = buffer.get_32()
+		if offer_count >= 0:
+			var subs = {}
+			for o in offer_count:
+				var offer = {}
+				offer["baseplan_id"] = _read_string(buffer)
+				offer["offer_id"] = _read_string(buffer)
+				offer["offer_token"] = _read_string(buffer)
+				offer["offer_tags"] = _read_string_list(buffer)
+				var phases = {}
+				var phase_count = buffer.get_32()
+				for p in phase_count:
+					var phase = {}
+					phase["billing_cycle_count"] = buffer.get_32()
+					phase["billing_period"] = _read_string(buffer)
+					phase["billing_price_formatted"] = _read_string(buffer)
+					phase["billing_price_amount_micros"] = buffer.get_64()
+					phase["billing_price_currency_codes"] = _read_string(buffer)
+					phase["billing_recurrence_mode"] = buffer.get_32()
+					phase["billing_recurrence_mode_hint"] = RECURRENCE_MODE_HINTS.get(phase["billing_recurrence_mode"], "Not supported recurrence mode")
+					phases["pricing_phase_%d" % (p + 1)] = phase
+				offer["offer_pricing_phases"] = phases
+				subs[offer["baseplan_id"]] = offer
+			product["product_subs"] = subs
+		products.append(product)
+	return products
+
+
+static func decode_purchases(data: PackedByteArray) -> Array:
+	var buffer = _open(data, KIND_PURCHASES)
+	var purchases = []
+	if buffer == null:
+		return purchases
+	var count = buffer.get_32()
+	for i in count:
+		var purchase = {}
+		purchase["order_id"] = _read_string(buffer)
+		purchase["package_name"] = _read_string(buffer)
+		purchase["purchase_state"] = buffer.get_32()
+		purchase["purchase_time"] = buffer.get_64()
+		purchase["purchase_token"] = _read_string(buffer)
+		purchase["quantity"] = buffer.get_32()
+		var products = _read_string_list(buffer)
+		purchase["product"] = products[0] if products.size() > 0 else ""
+		purchase["products"] = products
+		purchase["is_acknowledged"] = buffer.get_u8() == 1
+		purchase["is_auto_renewing"] = buffer.get_u8() == 1
+		purchase["original_json"] = _read_string(buffer)
+		purchase["signature"] = _read_string(buffer)
+		purchases.append(purchase)
+	return purchases
+
+
+static func _open(data: PackedByteArray, kind: int) -> StreamPeerBuffer:
+	var buffer = StreamPeerBuffer.new()
+	buffer.data_array = data
+	buffer.big_endian = true
+	if data.size() < 9 or buffer.get_u8() != 0x47 or buffer.get_u8() != 0x50 or buffer.get_u8() != 0x42:
+		push_error("GooglePlayBillingPacked: not a packed billing result")
+		return null
+	var version = buffer.get_u8()
+	if version != FORMAT_VERSION:
+		push_error("GooglePlayBillingPacked: unsupported format version %d" % version)
+		return null
+	if buffer.get_u8() != kind:
+		push_error("GooglePlayBillingPacked: unexpected result kind")
+		return null
+	return buffer
+
+
+static func _read_string(buffer: StreamPeerBuffer):
+	var length = buffer.get_32()
+	if length < 0:
+		return null
+	if length == 0:
+		return ""
+	return buffer.get_utf8_string(length)
+
+
+static func _read_string_list(buffer: StreamPeerBuffer) -> PackedStringArray:
+	var strings = PackedStringArray()
+	var count = buffer.get_32()
+	for i in count:
+		var s = _read_string(buffer)
+		strings.append(s if s != null else "")
+	return strings
@@ -0,0 +1,120 @@
+package org.godotengine.godot.plugin.googleplaybilling.benchmarks;
+
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsFactory;
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Synthetic catalogs and purchases built from the JSON templates in
+// src/jmh/resources/fixtures, in the format Play returns them.
+final class Fixtures {
+	private static final long[] PRICES_MICROS = { 990000L, 1990000L, 4990000L, 9990000L, 19990000L };
+	private static final String[] BILLING_PERIODS = { "P1W", "P1M", "P3M", "P6M", "P1Y" };
+
+	private Fixtures() {
+	}
+
+	static List<ProductDetails> inAppCatalog(int size) throws JSONException {
+		JSONObject template = load("product_inapp.json");
+		List<ProductDetails> products = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			JSONObject product = copy(template);
+			product.put("productId", "gems_pack_" + i);
+			product.put("title", "Gems Pack " + i + " (Godot Example)");
+			product.put("name", "Gems Pack " + i);
+			JSONObject offer = product.getJSONObject("oneTimePurchaseOfferDetails");
+			long price = PRICES_MICROS[i % PRICES_MICROS.length];
+			offer.put("priceAmountMicros", price);
+			offer.put("formattedPrice", formatPrice(price));
+			products.add(ProductDetailsFactory.fromJson(product.toString()));
+		}
+		return products;
+	}
+
+	static List<ProductDetails> subscriptionCatalog(int size, int offersPerProduct, int phasesPerOffer) throws JSONException {
+		JSONObject template = load("product_subs.json");
+		JSONObject offerTemplate = load("subscription_offer.json");
+		JSONObject phaseTemplate = load("pricing_phase.json");
+		List<ProductDetails> products = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			JSONObject product = copy(template);
+			product.put("productId", "premium_" + i);
+			product.put("title", "Premium " + i + " (Godot Example)");
+			product.put("name", "Premium " + i);
+			JSONArray offers = new JSONArray();
+			for (int o = 0; o < offersPerProduct; o++) {
+				JSONObject offer = copy(offerTemplate);
+				// Every offer gets its own base plan, base plans are the keys of product_subs.
+				offer.put("basePlanId", "plan_" + o);
+				offer.put("offerId", "offer_" + o);
+				offer.put("offerIdToken", offerTemplate.getString("offerIdToken") + "_" + i + "_" + o);
+				JSONArray phases = new JSONArray();
+				for (int p = 0; p < phasesPerOffer; p++) {
+					JSONObject phase = copy(phaseTemplate);
+					boolean last = p == phasesPerOffer - 1;
+					long price = last ? PRICES_MICROS[(i + o) % PRICES_MICROS.length] : 0L;
+					phase.put("priceAmountMicros", price);
+					phase.put("formattedPrice", price == 0L ? "Free" : formatPrice(price));
+					phase.put("billingPeriod", BILLING_PERIODS[(o + p) % BILLING_PERIODS.length]);
+					// Trial and intro phases are finite, the last one renews forever.
+					phase.put("billingCycleCount", last ? 0 : 1);
+					phase.put("recurrenceMode", last ? 1 : 2);
+					phases.put(phase);
+				}
+				offer.put("pricingPhases", phases);
+				offers.put(offer);
+			}
+			product.put("subscriptionOfferDetails", offers);
+			products.add(ProductDetailsFactory.fromJson(product.toString()));
+		}
+		return products;
+	}
+
+	static List<Purchase> purchases(int count) throws JSONException {
+		JSONObject template = load("purchase.json");
+		List<Purchase> purchases = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			JSONObject purchase = copy(template);
+			purchase.put("orderId", template.getString("orderId") + ".." + i);
+			purchase.put("productId", "gems_pack_" + i);
+			purchase.put("purchaseTime", template.getLong("purchaseTime") + i * 1000L);
+			purchase.put("purchaseToken", template.getString("purchaseToken") + i);
+			purchases.add(new Purchase(purchase.toString(), "c2lnbmF0dXJl" + i));
+		}
+		return purchases;
+	}
+
+	private static String formatPrice(long micros) {
+		return "$" + (micros / 1000000L) + "." + String.format("%02d", (micros / 10000L) % 100L);
+	}
+
+	private static JSONObject copy(JSONObject object) throws JSONException {
+		return new JSONObject(object.toString());
+	}
+
+	private static JSONObject load(String name) throws JSONException {
+		try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+			if (in == null) {
+				throw new IllegalStateException("Missing fixture " + name);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return new JSONObject(out.toString("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read fixture " + name, e);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.godotengine.godot.plugin.googleplaybilling.benchmarks;
+
+import com.android.billingclient.api.ProductDetails;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingBinaryEncoder;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+// The shop-open path: converting a queryProductDetails result for Godot,
+// as Dictionaries or in the packed format.
+public class ProductDetailsConversionBenchmark {
+	@State(Scope.Benchmark)
+	public static class InAppCatalog {
+		@Param({ "10", "100", "1000", "5000" })
+		public int catalogSize;
+
+		List<ProductDetails> products;
+
+		@Setup
+		public void setup() throws JSONException {
+			products = Fixtures.inAppCatalog(catalogSize);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SubscriptionCatalog {
+		@Param({ "10", "100", "1000", "5000" })
+		public int catalogSize;
+
+		@Param({ "1", "4", "16" })
+		public int offersPerProduct;
+
+		@Param({ "1", "3" })
+		public int phasesPerOffer;
+
+		List<ProductDetails> products;
+
+		@Setup
+		public void setup() throws JSONException {
+			products = Fixtures.subscriptionCatalog(catalogSize, offersPerProduct, phasesPerOffer);
+		}
+	}
+
+	@Benchmark
+	public Object[] inAppCatalogToDictionaries(InAppCatalog catalog) {
+		return GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(catalog.products);
+	}
+
+	@Benchmark
+	public byte[] inAppCatalogPacked(InAppCatalog catalog) {
+		return BillingBinaryEncoder.encodeProductDetailsList(catalog.products);
+	}
+
+	@Benchmark
+	public Object[] subscriptionCatalogToDictionaries(SubscriptionCatalog catalog) {
+		return GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(catalog.products);
+	}
+
+	@Benchmark
+	public byte[] subscriptionCatalogPacked(SubscriptionCatalog catalog) {
+		return BillingBinaryEncoder.encodeProductDetailsList(catalog.products);
+	}
+
+	@Benchmark
+	public Dictionary singleSubscriptionToDictionary(SubscriptionCatalog catalog) {
+		return GooglePlayBillingUtils.convertProductDetailsToDictionary(catalog.products.get(0));
+	}
+}
@@ -0,0 +1,39 @@
+package org.godotengine.godot.plugin.googleplaybilling.benchmarks;
+
+import com.android.billingclient.api.Purchase;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingBinaryEncoder;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+// Converting queryPurchases and purchases_updated results for Godot.
+@State(Scope.Benchmark)
+public class PurchaseConversionBenchmark {
+	@Param({ "1", "10", "100", "1000" })
+	public int purchaseCount;
+
+	List<Purchase> purchases;
+
+	@Setup
+	public void setup() throws JSONException {
+		purchases = Fixtures.purchases(purchaseCount);
+	}
+
+	@Benchmark
+	public Object[] purchasesToDictionaries() {
+		return GooglePlayBillingUtils.convertPurchaseListToDictionaryObjectArray(purchases);
+	}
+
+	@Benchmark
+	public byte[] purchasesPacked() {
+		return BillingBinaryEncoder.encodePurchaseList(purchases);
+	}
+}
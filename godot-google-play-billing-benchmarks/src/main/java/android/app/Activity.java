@@ -0,0 +1,5 @@
+package android.app;
+
+// Stand-in for the type in the BillingBackend.launchBillingFlow signature, the simulator never uses it.
+public class Activity {
+}
@@ -0,0 +1,8 @@
+package android.text;
+
+// Stand-in for the one android.text.TextUtils method the Play Billing model classes call.
+public class TextUtils {
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
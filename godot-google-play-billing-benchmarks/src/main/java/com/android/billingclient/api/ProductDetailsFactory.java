@@ -0,0 +1,11 @@
+package com.android.billingclient.api;
+
+import org.json.JSONException;
+
+// ProductDetails can only be built from its package, the same way the billing
+// client builds it from the JSON returned by Play.
+public class ProductDetailsFactory {
+	public static ProductDetails fromJson(String json) throws JSONException {
+		return new ProductDetails(json);
+	}
+}
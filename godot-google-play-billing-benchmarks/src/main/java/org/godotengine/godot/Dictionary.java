@@ -0,0 +1,7 @@
+package org.godotengine.godot;
+
+import java.util.HashMap;
+
+// Stand-in for the Dictionary of the Godot Android library, which has the same base class.
+public class Dictionary extends HashMap<String, Object> {
+}
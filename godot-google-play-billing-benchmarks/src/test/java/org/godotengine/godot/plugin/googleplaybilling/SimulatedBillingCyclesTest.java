@@ -0,0 +1,266 @@
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Drives thousands of query/purchase/consume cycles through the harness and checks
+// that every call gets an answer. Throughput and tail latency of the whole cycle are
+// printed, not asserted, as they depend on the machine running the tests.
+public class SimulatedBillingCyclesTest {
+	private static final int CYCLE_OK = 0;
+	// A call answered with an error, like the failures injected by the script.
+	private static final int CYCLE_FAILED = 1;
+	// A call left without an answer.
+	private static final int CYCLE_LOST = 2;
+	private static final int WORKERS = 16;
+	private static final int CYCLES_PER_WORKER = 125;
+	private static final long STEP_TIMEOUT_MILLIS = 30000;
+
+	private SimulatedBillingHarness harness;
+
+	@After
+	public void tearDown() {
+		if (harness != null) {
+			harness.shutdown();
+		}
+	}
+
+	@Test
+	public void purchaseCyclesAllGetAnswered() throws Exception {
+		Map<String, Object> script = script(WORKERS);
+		script.put("latency", latency(2, 20));
+		Map<String, Object> operationLatency = new HashMap<>();
+		operationLatency.put("purchase", latency(1, 5));
+		script.put("operation_latency", operationLatency);
+		Map<String, Object> failures = new HashMap<>();
+		failures.put("queryProductDetails", Collections.singletonMap("SERVICE_UNAVAILABLE", (Object)0.005));
+		script.put("failures", failures);
+		harness = new SimulatedBillingHarness(script);
+		assertEquals(BillingClient.BillingResponseCode.OK, harness.connect(STEP_TIMEOUT_MILLIS));
+
+		final long[] cycleNanos = new long[WORKERS * CYCLES_PER_WORKER];
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger lost = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+		long start = System.nanoTime();
+		for (int w = 0; w < WORKERS; w++) {
+			final String productId = "coins_" + w;
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < CYCLES_PER_WORKER; i++) {
+						long cycleStart = System.nanoTime();
+						int outcome;
+						try {
+							outcome = runCycle(productId);
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (outcome == CYCLE_OK) {
+							cycleNanos[completed.getAndIncrement()] = System.nanoTime() - cycleStart;
+						} else if (outcome == CYCLE_FAILED) {
+							failed.incrementAndGet();
+						} else {
+							lost.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		assertTrue("Cycles did not finish", workers.awaitTermination(120, TimeUnit.SECONDS));
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int total = WORKERS * CYCLES_PER_WORKER;
+		long[] latencies = Arrays.copyOf(cycleNanos, completed.get());
+		Arrays.sort(latencies);
+		double throughput = completed.get() / seconds;
+		double p50 = percentileMillis(latencies, 0.50);
+		double p99 = percentileMillis(latencies, 0.99);
+		System.out.println(String.format("%d cycles (%d failed, %d lost) in %.2f s: %.1f cycles/s, p50 %.1f ms, p99 %.1f ms",
+				total, failed.get(), lost.get(), seconds, throughput, p50, p99));
+		assertEquals("Calls left without an answer", 0, lost.get());
+		assertEquals(total, completed.get() + failed.get());
+	}
+
+	@Test
+	public void queuedQueriesCompleteAcrossDisconnects() throws Exception {
+		Map<String, Object> script = script(1);
+		script.put("latency", latency(2, 20));
+		script.put("disconnect_interval_ms", 200);
+		harness = new SimulatedBillingHarness(script);
+		harness.purchasesCache.setStalenessMillis(0);
+		assertEquals(BillingClient.BillingResponseCode.OK, harness.connect(STEP_TIMEOUT_MILLIS));
+
+		final AtomicInteger answered = new AtomicInteger();
+		final AtomicInteger ok = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+		for (int w = 0; w < 8; w++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50; i++) {
+						final CountDownLatch done = new CountDownLatch(1);
+						harness.queryPurchases(BillingClient.ProductType.INAPP, new PurchasesResponseListener() {
+							@Override
+							public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+								if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+									ok.incrementAndGet();
+								}
+								done.countDown();
+							}
+						});
+						try {
+							if (!done.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+								return;
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+						answered.incrementAndGet();
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		assertTrue("Queries did not finish", workers.awaitTermination(120, TimeUnit.SECONDS));
+		System.out.println(String.format("400 queries, %d OK, %d disconnects, %d operations exhausted",
+				ok.get(), harness.disconnects.get(), harness.exhaustedOperations.get()));
+		assertEquals("Queries left without an answer", 400, answered.get());
+		assertTrue("No disconnect was simulated", harness.disconnects.get() > 0);
+		assertTrue(ok.get() > 0);
+	}
+
+	// Query the product, buy it, consume it and query purchases again.
+	private int runCycle(String productId) throws InterruptedException {
+		final ProductDetails[] details = new ProductDetails[1];
+		final CountDownLatch queried = new CountDownLatch(1);
+		harness.queryProductDetails(Collections.singletonList(productId), BillingClient.ProductType.INAPP, new ProductDetailsResponseListener() {
+			@Override
+			public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && !productDetailsList.isEmpty()) {
+					details[0] = productDetailsList.get(0);
+				}
+				queried.countDown();
+			}
+		});
+		if (!queried.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			return CYCLE_LOST;
+		}
+		if (details[0] == null) {
+			return CYCLE_FAILED;
+		}
+
+		final String[] token = new String[1];
+		final CountDownLatch purchased = new CountDownLatch(1);
+		harness.purchase(details[0], new PurchasesUpdatedListener() {
+			@Override
+			public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && purchases != null && !purchases.isEmpty()) {
+					token[0] = purchases.get(0).getPurchaseToken();
+				}
+				purchased.countDown();
+			}
+		});
+		if (!purchased.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			return CYCLE_LOST;
+		}
+		if (token[0] == null) {
+			return CYCLE_FAILED;
+		}
+
+		final boolean[] consumedOk = new boolean[1];
+		final CountDownLatch consumed = new CountDownLatch(1);
+		harness.consumePurchase(token[0], new ConsumeResponseListener() {
+			@Override
+			public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
+				consumedOk[0] = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK;
+				consumed.countDown();
+			}
+		});
+		if (!consumed.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			return CYCLE_LOST;
+		}
+		if (!consumedOk[0]) {
+			return CYCLE_FAILED;
+		}
+
+		final boolean[] queriedPurchasesOk = new boolean[1];
+		final CountDownLatch queriedPurchases = new CountDownLatch(1);
+		harness.queryPurchases(BillingClient.ProductType.INAPP, new PurchasesResponseListener() {
+			@Override
+			public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+				queriedPurchasesOk[0] = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK;
+				queriedPurchases.countDown();
+			}
+		});
+		if (!queriedPurchases.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			return CYCLE_LOST;
+		}
+		return queriedPurchasesOk[0] ? CYCLE_OK : CYCLE_FAILED;
+	}
+
+	private static Map<String, Object> script(int products) throws JSONException {
+		List<Object> catalog = new ArrayList<>();
+		for (int i = 0; i < products; i++) {
+			JSONObject product = new JSONObject();
+			product.put("productId", "coins_" + i);
+			product.put("type", BillingClient.ProductType.INAPP);
+			product.put("title", "Coins " + i);
+			product.put("name", "Coins " + i);
+			product.put("description", "A pile of coins");
+			JSONObject offer = new JSONObject();
+			offer.put("priceAmountMicros", 990000L);
+			offer.put("priceCurrencyCode", "USD");
+			offer.put("formattedPrice", "$0.99");
+			product.put("oneTimePurchaseOfferDetails", offer);
+			catalog.add(product.toString());
+		}
+		Map<String, Object> script = new HashMap<>();
+		script.put("products", catalog);
+		script.put("seed", 42);
+		return script;
+	}
+
+	private static Map<String, Object> latency(long medianMillis, long p99Millis) {
+		Map<String, Object> latency = new HashMap<>();
+		latency.put("median_ms", medianMillis);
+		latency.put("p99_ms", p99Millis);
+		return latency;
+	}
+
+	private static double percentileMillis(long[] sortedNanos, double percentile) {
+		if (sortedNanos.length == 0) {
+			return 0;
+		}
+		int index = (int)Math.ceil(percentile * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, index)] / 1e6;
+	}
+}
@@ -0,0 +1,173 @@
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingMetrics;
+import org.godotengine.godot.plugin.googleplaybilling.utils.FlightRecorder;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The plugin's backend-facing pieces (query coalescer, operation queue, BillingOperations
+// with its purchases cache) on SimulatedBillingBackend, without Godot or an Activity.
+class SimulatedBillingHarness implements BillingClientStateListener, PurchasesUpdatedListener {
+	final SimulatedBillingBackend backend;
+	final ProductDetailsQueryCoalescer queryCoalescer;
+	final BillingOperationQueue operationQueue;
+	final BillingOperations operations;
+	final PurchasesQueryCache purchasesCache;
+	final BillingMetrics metrics = new BillingMetrics();
+	final AtomicInteger exhaustedOperations = new AtomicInteger();
+	final AtomicInteger disconnects = new AtomicInteger();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	// Like on a device, one billing flow is shown at a time.
+	private final Semaphore billingFlow = new Semaphore(1);
+	private volatile PurchasesUpdatedListener flowListener;
+	private volatile CountDownLatch setup;
+
+	SimulatedBillingHarness(Map<String, Object> script) {
+		backend = new SimulatedBillingBackend(this, script);
+		queryCoalescer = new ProductDetailsQueryCoalescer(scheduler);
+		queryCoalescer.setBackend(backend);
+		operationQueue = new BillingOperationQueue(new BillingOperationQueue.Host() {
+			@Override
+			public boolean isConnected() {
+				return backend.isReady();
+			}
+
+			@Override
+			public boolean isConnecting() {
+				return backend.getConnectionState() == BillingClient.ConnectionState.CONNECTING;
+			}
+
+			@Override
+			public void reconnect() {
+				backend.startConnection(SimulatedBillingHarness.this);
+			}
+
+			@Override
+			public void onOperationExhausted(BillingOperationQueue.Operation operation, int responseCode) {
+				exhaustedOperations.incrementAndGet();
+			}
+		}, scheduler);
+		operationQueue.configure(true, BillingOperationQueue.DEFAULT_MAX_ATTEMPTS, 1024);
+		operations = new BillingOperations(new BillingOperations.Host() {
+			@Override
+			public BillingBackend getBackend() {
+				return backend;
+			}
+
+			@Override
+			public void submit(BillingOperationQueue.Operation operation) {
+				operationQueue.submit(operation);
+			}
+
+			@Override
+			public void onPurchasesQueried(String type, BillingResult billingResult, List<Purchase> purchases,
+					PurchasesResponseListener listener) {
+				listener.onQueryPurchasesResponse(billingResult, purchases);
+			}
+
+			@Override
+			public void onAcknowledged(String purchaseToken, BillingResult billingResult) {
+			}
+
+			@Override
+			public void onConsumed(String purchaseToken, BillingResult billingResult) {
+			}
+		}, operationQueue, metrics, new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY));
+		purchasesCache = operations.purchasesCache;
+	}
+
+	// Returns the setup response code, or -1 on timeout.
+	int connect(long timeoutMillis) throws InterruptedException {
+		setup = new CountDownLatch(1);
+		operationQueue.onConnectionRequested();
+		backend.startConnection(this);
+		if (!setup.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			return -1;
+		}
+		return backend.isReady() ? BillingClient.BillingResponseCode.OK : BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+	}
+
+	void shutdown() {
+		operationQueue.onEndConnection();
+		backend.endConnection();
+		backend.shutdown();
+		scheduler.shutdownNow();
+	}
+
+	void queryProductDetails(List<String> productIds, String type, ProductDetailsResponseListener listener) {
+		queryCoalescer.query(productIds, type, listener);
+	}
+
+	void queryPurchases(String type, PurchasesResponseListener listener) {
+		operations.queryPurchases(type, listener);
+	}
+
+	// Waits for the billing flow to be free, listener gets the purchase update of this flow.
+	void purchase(ProductDetails productDetails, PurchasesUpdatedListener listener) throws InterruptedException {
+		billingFlow.acquire();
+		flowListener = listener;
+		BillingResult result = backend.launchBillingFlow(null, null, productDetails);
+		if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+			flowListener = null;
+			billingFlow.release();
+			listener.onPurchasesUpdated(result, null);
+		}
+	}
+
+	void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+		operations.acknowledgePurchase(purchaseToken, listener);
+	}
+
+	void consumePurchase(String purchaseToken, ConsumeResponseListener listener) {
+		operations.consumePurchase(purchaseToken, listener);
+	}
+
+	@Override
+	public void onBillingSetupFinished(BillingResult billingResult) {
+		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+			operationQueue.onConnected();
+		} else {
+			operationQueue.onConnectFailed(billingResult.getResponseCode());
+		}
+		CountDownLatch latch = setup;
+		if (latch != null) {
+			latch.countDown();
+		}
+	}
+
+	@Override
+	public void onBillingServiceDisconnected() {
+		disconnects.incrementAndGet();
+		operationQueue.onDisconnected();
+	}
+
+	@Override
+	public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
+		purchasesCache.invalidate();
+		PurchasesUpdatedListener listener = flowListener;
+		if (listener == null) {
+			return;
+		}
+		flowListener = null;
+		billingFlow.release();
+		listener.onPurchasesUpdated(billingResult, purchases);
+	}
+}
@@ -0,0 +1,77 @@
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseSnapshotTest {
+	private final Map<String, String> knownTypes = new HashMap<>();
+	private final PurchaseSnapshot snapshot = new PurchaseSnapshot(new PurchaseSnapshot.TypeResolver() {
+		@Override
+		public String getProductType(String productId) {
+			return knownTypes.get(productId);
+		}
+	});
+
+	@Test
+	public void updateOfUnknownTypeIsRemovedOnceBothTypesWereQueriedWithoutIt() throws Exception {
+		Purchase promo = purchase("promo_skin", "token_promo");
+		assertEquals(1, snapshot.applyUpdate(Collections.singletonList(promo)).added.size());
+
+		PurchaseSnapshot.Delta inapp = snapshot.applyQuery(BillingClient.ProductType.INAPP, none());
+		assertTrue(inapp.removed.isEmpty());
+		PurchaseSnapshot.Delta subs = snapshot.applyQuery(BillingClient.ProductType.SUBS, none());
+		assertEquals(Collections.singletonList("token_promo"), subs.removed);
+	}
+
+	@Test
+	public void updateOfUnknownTypeIsRemovedByAQueryOfItsResolvedType() throws Exception {
+		Purchase promo = purchase("promo_skin", "token_promo");
+		snapshot.applyUpdate(Collections.singletonList(promo));
+		// The shop was queried after the update.
+		knownTypes.put("promo_skin", BillingClient.ProductType.INAPP);
+
+		assertTrue(snapshot.applyQuery(BillingClient.ProductType.SUBS, none()).removed.isEmpty());
+		assertEquals(Collections.singletonList("token_promo"),
+				snapshot.applyQuery(BillingClient.ProductType.INAPP, none()).removed);
+	}
+
+	@Test
+	public void updateOfUnknownTypeSeenByAQueryIsKept() throws Exception {
+		Purchase promo = purchase("promo_skin", "token_promo");
+		snapshot.applyUpdate(Collections.singletonList(promo));
+
+		assertTrue(snapshot.applyQuery(BillingClient.ProductType.INAPP, Collections.singletonList(promo)).removed.isEmpty());
+		assertTrue(snapshot.applyQuery(BillingClient.ProductType.SUBS, none()).removed.isEmpty());
+		assertEquals(Collections.singletonList("token_promo"),
+				snapshot.applyQuery(BillingClient.ProductType.INAPP, none()).removed);
+	}
+
+	private static List<Purchase> none() {
+		return Collections.emptyList();
+	}
+
+	private static Purchase purchase(String productId, String token) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("orderId", "GPA.0000-" + token);
+		json.put("packageName", "org.godotengine.test");
+		json.put("productId", productId);
+		json.put("purchaseTime", 1700000000000L);
+		json.put("purchaseState", 0);
+		json.put("purchaseToken", token);
+		json.put("quantity", 1);
+		json.put("acknowledged", false);
+		return new Purchase(json.toString(), "");
+	}
+}
@@ -0,0 +1,70 @@
+/*************************************************************************/
+/*  BillingBackend.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+
+import java.util.List;
+
+// The calls the plugin makes to Google Play, so they can be served by the real
+// BillingClient (PlayBillingBackend) or in-process (SimulatedBillingBackend).
+// Requests are passed as plain values since the Play params objects can't be read back.
+public interface BillingBackend {
+	void startConnection(BillingClientStateListener listener);
+
+	void endConnection();
+
+	boolean isReady();
+
+	int getConnectionState();
+
+	BillingResult isFeatureSupported(String feature);
+
+	void queryProductDetailsAsync(List<String> productIds, String productType, ProductDetailsResponseListener listener);
+
+	void queryPurchasesAsync(String productType, PurchasesResponseListener listener);
+
+	// params is what the Play Billing Library launches, productDetails the product it was built for.
+	BillingResult launchBillingFlow(Activity activity, BillingFlowParams params, ProductDetails productDetails);
+
+	void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener);
+
+	void consumeAsync(String purchaseToken, ConsumeResponseListener listener);
+}
@@ -0,0 +1,263 @@
+/*************************************************************************/
+/*  BillingOperationQueue.java                                           */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.ExponentialBackoff;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Resilient connection mode: while the billing service is down, operations are
+// held in a bounded queue and replayed in order once the connection is back,
+// and the connection itself is retried with jittered exponential backoff.
+class BillingOperationQueue {
+	static final int DEFAULT_MAX_ATTEMPTS = 5;
+	static final int DEFAULT_CAPACITY = 32;
+	private static final long BACKOFF_BASE_MILLIS = 1000;
+	private static final long BACKOFF_MAX_MILLIS = 60000;
+
+	interface Host {
+		boolean isConnected();
+		// True while a startConnection is still waiting for its setup result.
+		boolean isConnecting();
+		void reconnect();
+		void onOperationExhausted(Operation operation, int responseCode);
+	}
+
+	abstract static class Operation implements Runnable {
+		final String name;
+		final String detail;
+		int attempts;
+
+		Operation(String name, String detail) {
+			this.name = name;
+			this.detail = detail;
+		}
+
+		// Completes the operation with an error when it is dropped from the queue.
+		abstract void onDropped(BillingResult billingResult);
+	}
+
+	private final Host host;
+	private final ScheduledExecutorService scheduler;
+	private final ExponentialBackoff backoff = new ExponentialBackoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS);
+	private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+	private boolean enabled;
+	private boolean connectionWanted;
+	private boolean reconnectScheduled;
+	private int reconnectAttempts;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private int capacity = DEFAULT_CAPACITY;
+
+	BillingOperationQueue(Host host, ScheduledExecutorService scheduler) {
+		this.host = host;
+		this.scheduler = scheduler;
+	}
+
+	synchronized void configure(boolean enabled, int maxAttempts, int capacity) {
+		this.enabled = enabled;
+		this.maxAttempts = maxAttempts > 0 ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+		this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+	}
+
+	synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	// Runs the operation now, or queues it until the connection is back. Without a wanted
+	// connection (before startConnection or after endConnection) it fails right away.
+	void submit(Operation operation) {
+		List<Operation> dropped = new ArrayList<>();
+		boolean unwanted = false;
+		synchronized (this) {
+			if (!enabled || host.isConnected()) {
+				dropped = null;
+			} else if (!connectionWanted) {
+				unwanted = true;
+			} else {
+				enqueue(operation, dropped);
+			}
+		}
+		if (unwanted) {
+			operation.onDropped(unavailable(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, operation));
+			return;
+		}
+		if (dropped == null) {
+			operation.run();
+			return;
+		}
+		exhaust(dropped, BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+		scheduleReconnect();
+	}
+
+	// Called when an operation failed. Returns true if it was queued for another attempt,
+	// false if the caller should report the error (retry_exhausted was already emitted when
+	// the attempts ran out).
+	boolean retry(Operation operation, BillingResult billingResult) {
+		int responseCode = billingResult.getResponseCode();
+		if (responseCode != BillingClient.BillingResponseCode.SERVICE_DISCONNECTED) {
+			return false;
+		}
+		List<Operation> dropped = new ArrayList<>();
+		synchronized (this) {
+			if (!enabled || !connectionWanted) {
+				return false;
+			}
+			operation.attempts += 1;
+			if (operation.attempts >= maxAttempts) {
+				dropped = null;
+			} else {
+				enqueue(operation, dropped);
+			}
+		}
+		if (dropped == null) {
+			host.onOperationExhausted(operation, responseCode);
+			return false;
+		}
+		exhaust(dropped, responseCode);
+		scheduleReconnect();
+		return true;
+	}
+
+	void onConnectionRequested() {
+		synchronized (this) {
+			connectionWanted = true;
+		}
+	}
+
+	void onConnected() {
+		List<Operation> replay;
+		synchronized (this) {
+			reconnectAttempts = 0;
+			replay = new ArrayList<>(pending);
+			pending.clear();
+		}
+		for (Operation operation : replay) {
+			operation.run();
+		}
+	}
+
+	void onConnectFailed(int responseCode) {
+		List<Operation> dropped = null;
+		synchronized (this) {
+			if (!enabled || !connectionWanted) {
+				return;
+			}
+			if (reconnectAttempts >= maxAttempts) {
+				// Give up on the queued work, the next call starts a fresh round of attempts.
+				dropped = new ArrayList<>(pending);
+				pending.clear();
+				reconnectAttempts = 0;
+			}
+		}
+		if (dropped != null) {
+			exhaust(dropped, responseCode);
+			return;
+		}
+		scheduleReconnect();
+	}
+
+	void onDisconnected() {
+		scheduleReconnect();
+	}
+
+	void onEndConnection() {
+		List<Operation> dropped;
+		synchronized (this) {
+			connectionWanted = false;
+			reconnectAttempts = 0;
+			dropped = new ArrayList<>(pending);
+			pending.clear();
+		}
+		exhaust(dropped, BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+	}
+
+	private void enqueue(Operation operation, List<Operation> dropped) {
+		while (pending.size() >= capacity) {
+			dropped.add(pending.pollFirst());
+		}
+		pending.addLast(operation);
+	}
+
+	private void exhaust(List<Operation> operations, int responseCode) {
+		for (Operation operation : operations) {
+			host.onOperationExhausted(operation, responseCode);
+			operation.onDropped(unavailable(responseCode, operation));
+		}
+	}
+
+	private static BillingResult unavailable(int responseCode, Operation operation) {
+		return BillingResult.newBuilder()
+				.setResponseCode(responseCode)
+				.setDebugMessage("Billing service unavailable, gave up on " + operation.name)
+				.build();
+	}
+
+	// A setup in progress ends in onConnected or onConnectFailed, which take over from there;
+	// a second startConnection on a connecting client would only fail.
+	private void scheduleReconnect() {
+		if (host.isConnecting()) {
+			return;
+		}
+		long delay;
+		synchronized (this) {
+			if (!enabled || !connectionWanted || reconnectScheduled) {
+				return;
+			}
+			reconnectScheduled = true;
+			delay = backoff.delayMillis(reconnectAttempts);
+			reconnectAttempts += 1;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (BillingOperationQueue.this) {
+					reconnectScheduled = false;
+					if (!connectionWanted) {
+						return;
+					}
+				}
+				if (host.isConnected()) {
+					// Reconnected since the operation was queued, onConnected already ran without it.
+					onConnected();
+				} else if (!host.isConnecting()) {
+					host.reconnect();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+}
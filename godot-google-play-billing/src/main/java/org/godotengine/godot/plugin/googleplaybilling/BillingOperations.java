@@ -0,0 +1,171 @@
+/*************************************************************************/
+/*  BillingOperations.java                                               */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingMetrics;
+import org.godotengine.godot.plugin.googleplaybilling.utils.FlightRecorder;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// queryPurchases, acknowledgePurchase and consumePurchase as operations of the operation
+// queue: timed, traced, retried, and invalidating the purchases cache once they are final.
+// What only the plugin does with the results (journal, verification, entitlements) goes
+// through the host.
+class BillingOperations {
+	interface Host {
+		BillingBackend getBackend();
+		// Hands the operation to the queue, the plugin may hold it until its first connection.
+		void submit(BillingOperationQueue.Operation operation);
+		// OK query results, the host passes them on to listener.
+		void onPurchasesQueried(String type, BillingResult billingResult, List<Purchase> purchases, PurchasesResponseListener listener);
+		void onAcknowledged(String purchaseToken, BillingResult billingResult);
+		void onConsumed(String purchaseToken, BillingResult billingResult);
+	}
+
+	final PurchasesQueryCache purchasesCache;
+	private final Host host;
+	private final BillingOperationQueue operationQueue;
+	private final BillingMetrics metrics;
+	private final FlightRecorder trace;
+
+	BillingOperations(Host host, BillingOperationQueue operationQueue, BillingMetrics metrics, FlightRecorder trace) {
+		this.host = host;
+		this.operationQueue = operationQueue;
+		this.metrics = metrics;
+		this.trace = trace;
+		purchasesCache = new PurchasesQueryCache(new PurchasesQueryCache.Loader() {
+			@Override
+			public void load(String type, PurchasesResponseListener listener) {
+				queryPurchasesFromBackend(type, listener);
+			}
+		});
+	}
+
+	// Every purchases query goes through purchasesCache, so resume storms don't each reach Play.
+	void queryPurchases(String type, PurchasesResponseListener listener) {
+		purchasesCache.query(type, listener);
+	}
+
+	private void queryPurchasesFromBackend(final String type, final PurchasesResponseListener listener) {
+		host.submit(new BillingOperationQueue.Operation("queryPurchases", type) {
+			@Override
+			public void run() {
+				final BillingOperationQueue.Operation operation = this;
+				final long startNanos = BillingMetrics.start();
+				final int span = trace.begin("billing", "queryPurchases", type);
+				host.getBackend().queryPurchasesAsync(type, new PurchasesResponseListener() {
+					@Override
+					public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchaseList) {
+						metrics.record("queryPurchases", startNanos, billingResult.getResponseCode());
+						trace.end("billing", "queryPurchases", span, billingResult.getResponseCode());
+						if (operationQueue.retry(operation, billingResult)) {
+							return;
+						}
+						if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+							listener.onQueryPurchasesResponse(billingResult, purchaseList);
+							return;
+						}
+						host.onPurchasesQueried(type, billingResult, purchaseList, listener);
+					}
+				});
+			}
+
+			@Override
+			void onDropped(BillingResult billingResult) {
+				listener.onQueryPurchasesResponse(billingResult, new ArrayList<Purchase>());
+			}
+		});
+	}
+
+	void acknowledgePurchase(final String purchaseToken, final AcknowledgePurchaseResponseListener listener) {
+		host.submit(new BillingOperationQueue.Operation("acknowledgePurchase", purchaseToken) {
+			@Override
+			public void run() {
+				final BillingOperationQueue.Operation operation = this;
+				final long startNanos = BillingMetrics.start();
+				final int span = trace.begin("billing", "acknowledgePurchase", purchaseToken);
+				host.getBackend().acknowledgePurchase(purchaseToken, new AcknowledgePurchaseResponseListener() {
+					@Override
+					public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+						metrics.record("acknowledgePurchase", startNanos, billingResult.getResponseCode());
+						trace.end("billing", "acknowledgePurchase", span, billingResult.getResponseCode());
+						if (!operationQueue.retry(operation, billingResult)) {
+							purchasesCache.invalidate();
+							host.onAcknowledged(purchaseToken, billingResult);
+							listener.onAcknowledgePurchaseResponse(billingResult);
+						}
+					}
+				});
+			}
+
+			@Override
+			void onDropped(BillingResult billingResult) {
+				listener.onAcknowledgePurchaseResponse(billingResult);
+			}
+		});
+	}
+
+	void consumePurchase(final String purchaseToken, final ConsumeResponseListener listener) {
+		host.submit(new BillingOperationQueue.Operation("consumePurchase", purchaseToken) {
+			@Override
+			public void run() {
+				final BillingOperationQueue.Operation operation = this;
+				final long startNanos = BillingMetrics.start();
+				final int span = trace.begin("billing", "consumePurchase", purchaseToken);
+				host.getBackend().consumeAsync(purchaseToken, new ConsumeResponseListener() {
+					@Override
+					public void onConsumeResponse(BillingResult billingResult, String token) {
+						metrics.record("consumePurchase", startNanos, billingResult.getResponseCode());
+						trace.end("billing", "consumePurchase", span, billingResult.getResponseCode());
+						if (!operationQueue.retry(operation, billingResult)) {
+							purchasesCache.invalidate();
+							host.onConsumed(purchaseToken, billingResult);
+							listener.onConsumeResponse(billingResult, purchaseToken);
+						}
+					}
+				});
+			}
+
+			@Override
+			void onDropped(BillingResult billingResult) {
+				listener.onConsumeResponse(billingResult, purchaseToken);
+			}
+		});
+	}
+}
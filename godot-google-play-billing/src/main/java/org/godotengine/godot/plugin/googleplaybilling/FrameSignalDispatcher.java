@@ -0,0 +1,81 @@
+/*************************************************************************/
+/*  FrameSignalDispatcher.java                                           */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hands signals from any thread to the next engine frames, at most maxSignalsPerFrame
+// per frame, so a burst of results doesn't land on the engine inside a single frame.
+// Drained from the plugin's per-frame callbacks on Godot's render thread: the engine
+// often runs slower than display vsync on low-end devices, so frames are counted there.
+class FrameSignalDispatcher {
+	static final int DEFAULT_MAX_SIGNALS_PER_FRAME = 4;
+
+	interface Emitter {
+		void emit(String signal, Object[] args);
+	}
+
+	private static class PendingSignal {
+		final String signal;
+		final Object[] args;
+
+		PendingSignal(String signal, Object[] args) {
+			this.signal = signal;
+			this.args = args;
+		}
+	}
+
+	private final Emitter emitter;
+	private final ConcurrentLinkedQueue<PendingSignal> pending = new ConcurrentLinkedQueue<>();
+	private volatile int maxSignalsPerFrame = DEFAULT_MAX_SIGNALS_PER_FRAME;
+
+	FrameSignalDispatcher(Emitter emitter) {
+		this.emitter = emitter;
+	}
+
+	// 0 delivers everything pending on the next frame.
+	void setMaxSignalsPerFrame(int maxSignalsPerFrame) {
+		this.maxSignalsPerFrame = Math.max(0, maxSignalsPerFrame);
+	}
+
+	void post(String signal, Object[] args) {
+		pending.add(new PendingSignal(signal, args));
+	}
+
+	// Called once per engine frame on the render thread.
+	void onFrame() {
+		int limit = maxSignalsPerFrame;
+		PendingSignal next;
+		for (int delivered = 0; (limit == 0 || delivered < limit) && (next = pending.poll()) != null; delivered++) {
+			emitter.emit(next.signal, next.args);
+		}
+	}
+}
@@ -34,214 +34,1276 @@ import org.godotengine.godot.Dictionary;
 import org.godotengine.godot.Godot;
 import org.godotengine.godot.plugin.GodotPlugin;
 import org.godotengine.godot.plugin.SignalInfo;
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingBinaryEncoder;
+import org.godotengine.godot.plugin.googleplaybilling.utils.BillingMetrics;
+import org.godotengine.godot.plugin.googleplaybilling.utils.EntitlementIndex;
+import org.godotengine.godot.plugin.googleplaybilling.utils.ExpiringLruCache;
+import org.godotengine.godot.plugin.googleplaybilling.utils.FieldProjection;
+import org.godotengine.godot.plugin.googleplaybilling.utils.FlightRecorder;
 import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+import org.godotengine.godot.plugin.googleplaybilling.utils.ProductCatalogStore;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseJournal;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseSignatureVerifier;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseSnapshot;
+import org.godotengine.godot.plugin.googleplaybilling.utils.SubscriptionOfferIndex;
 import org.godotengine.godot.plugin.UsedByGodot;
 
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.collection.ArraySet;
 
-import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
 import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
-import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchasesResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
 
 import com.android.billingclient.api.ProductDetails;
-import com.android.billingclient.api.QueryPurchasesParams;
-import com.android.billingclient.api.QueryProductDetailsParams;
 import com.android.billingclient.api.ProductDetailsResponseListener;
 
 import com.google.common.collect.ImmutableList;
 
+import javax.microedition.khronos.opengles.GL10;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpdatedListener, BillingClientStateListener {
 
-	private final BillingClient billingClient;
-	private final HashMap<String, ProductDetails> ProductDetailsCache = new HashMap<>(); // use for iap 6.0
-	private boolean calledStartConnection;
+	// Built on first use, so plugin initialization stays off the app's cold start path.
+	private volatile BillingBackend backend;
+	private static final int DEFAULT_PRODUCT_CACHE_SIZE = 2000;
+	private static final long DEFAULT_PRODUCT_CACHE_TTL_MILLIS = 0; // no expiry unless the game opts in
+
+	private final ExpiringLruCache<ProductDetails> ProductDetailsCache =
+			new ExpiringLruCache<>(DEFAULT_PRODUCT_CACHE_SIZE, DEFAULT_PRODUCT_CACHE_TTL_MILLIS); // use for iap 6.0
+	private final SubscriptionOfferIndex offerIndex = new SubscriptionOfferIndex();
+	private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	// Converts results for Godot off the Play callback threads. Results waiting for signature
+	// verification are converted once verified, possibly after later ones.
+	private final ExecutorService conversionExecutor = Executors.newSingleThreadExecutor();
+	// Runs the blocking isFeatureSupported probe, so it holds up neither conversions nor file writes.
+	private final ExecutorService featureExecutor = Executors.newSingleThreadExecutor();
+	private final FrameSignalDispatcher signalDispatcher;
+	private final ProductCatalogStore catalogStore;
+	private final ProductDetailsQueryCoalescer queryCoalescer;
+	private final BillingOperationQueue operationQueue;
+	private final BillingOperations operations;
+	private final PurchasesQueryCache purchasesCache;
+	private final PurchaseJournal purchaseJournal;
+	private volatile boolean purchaseJournalEnabled = true;
+	// Set by startConnection, so automatic reconnects don't recover the same purchases again.
+	private volatile boolean journalReplayPending;
+	private volatile PurchaseSignatureVerifier signatureVerifier;
+	private ExecutorService verificationExecutor;
+	private final BillingMetrics metrics = new BillingMetrics();
+	private volatile long connectStartNanos;
+	private final FlightRecorder trace = new FlightRecorder(FlightRecorder.DEFAULT_CAPACITY);
+	private volatile int connectSpan;
+	private ScheduledFuture<?> metricsReport;
+	private volatile boolean calledStartConnection;
+	private volatile boolean connectOnFirstUse;
+	// Calls made while a startConnection (first use, background, reconnect or the game's own)
+	// waits for its setup result, run once it arrives.
+	private final List<Runnable> awaitingConnection = new ArrayList<>();
+	private boolean connecting;
+	private volatile Dictionary prefetchManifest;
+	private final AtomicInteger pagedQueryIds = new AtomicInteger();
+	private static final int DEFAULT_PAGE_SIZE = 20;
+	private static final int DEFAULT_MAX_CONCURRENT_PAGES = 3;
+	// Result of the PRODUCT_DETAILS feature probe for the current connection, null until asked.
+	private volatile Boolean productDetailsSupported;
+	private int batchConcurrency = PurchaseTokenBatch.DEFAULT_CONCURRENCY;
+	private volatile boolean packedResults;
+	private volatile boolean purchaseDeltaMode;
+	private final PurchaseSnapshot.TypeResolver productTypeResolver = new PurchaseSnapshot.TypeResolver() {
+		@Override
+		public String getProductType(String productId) {
+			ProductDetails details = ProductDetailsCache.getIgnoringExpiry(productId);
+			return details != null ? details.getProductType() : catalogStore.getProductType(productId);
+		}
+	};
+	private final PurchaseSnapshot purchaseSnapshot = new PurchaseSnapshot(productTypeResolver);
+	private final EntitlementIndex entitlements = new EntitlementIndex(productTypeResolver);
 	private String obfuscatedAccountId;
 	private String obfuscatedProfileId;
 
 	public GodotGooglePlayBilling(Godot godot) {
 		super(godot);
 
-		billingClient = BillingClient
-								.newBuilder(getActivity())
-								.enablePendingPurchases()
-								.setListener(this)
-								.build();
+		signalDispatcher = new FrameSignalDispatcher(new FrameSignalDispatcher.Emitter() {
+			@Override
+			public void emit(String signal, Object[] args) {
+				trace.instant("signal", signal, null, FlightRecorder.NO_CODE);
+				emitSignal(signal, args);
+			}
+		});
+		// The offer index follows the cache, offers of evicted products go with them.
+		ProductDetailsCache.setRemovalListener(new ExpiringLruCache.RemovalListener<ProductDetails>() {
+			@Override
+			public void onRemoved(String productId, ProductDetails details) {
+				offerIndex.remove(details);
+			}
+		});
+		catalogStore = new ProductCatalogStore(getActivity(), ioExecutor);
+		// Read before any connection, so getCachedProductDetails at shop open never parses it on the Godot thread.
+		catalogStore.preload();
+		queryCoalescer = new ProductDetailsQueryCoalescer(scheduler);
+		purchaseJournal = new PurchaseJournal(getActivity(), ioExecutor);
+		operationQueue = new BillingOperationQueue(new BillingOperationQueue.Host() {
+			@Override
+			public boolean isConnected() {
+				return isReady();
+			}
+
+			@Override
+			public boolean isConnecting() {
+				return getConnectionState() == BillingClient.ConnectionState.CONNECTING;
+			}
+
+			@Override
+			public void reconnect() {
+				synchronized (awaitingConnection) {
+					connecting = true;
+				}
+				metrics.onReconnectAttempt();
+				connectStartNanos = BillingMetrics.start();
+				connectSpan = trace.begin("connection", "startConnection", "reconnect");
+				getBackend().startConnection(GodotGooglePlayBilling.this);
+			}
+
+			@Override
+			public void onOperationExhausted(BillingOperationQueue.Operation operation, int responseCode) {
+				deliverSignal("retry_exhausted", operation.name, operation.detail, responseCode);
+			}
+		}, scheduler);
+		operations = new BillingOperations(new BillingOperations.Host() {
+			@Override
+			public BillingBackend getBackend() {
+				return GodotGooglePlayBilling.this.getBackend();
+			}
+
+			@Override
+			public void submit(BillingOperationQueue.Operation operation) {
+				submitWhenConnected(operation);
+			}
+
+			@Override
+			public void onPurchasesQueried(final String type, final BillingResult billingResult, final List<Purchase> purchaseList,
+					final PurchasesResponseListener listener) {
+				journalPurchases(purchaseList);
+				verifyPurchases(purchaseList, new PurchaseSignatureVerifier.Callback() {
+					@Override
+					public void onVerified(@Nullable Map<String, Boolean> signatureResults) {
+						if (entitlements.applyQuery(type, trustedPurchases(purchaseList, signatureResults))) {
+							deliverEntitlementsChanged();
+						}
+						listener.onQueryPurchasesResponse(billingResult, signatureResults != null
+								? new VerifiedPurchaseList(purchaseList, signatureResults) : purchaseList);
+					}
+				});
+			}
+
+			@Override
+			public void onAcknowledged(String purchaseToken, BillingResult billingResult) {
+				journalFinished(purchaseToken, billingResult);
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && entitlements.onAcknowledged(purchaseToken)) {
+					deliverEntitlementsChanged();
+				}
+			}
+
+			@Override
+			public void onConsumed(String purchaseToken, BillingResult billingResult) {
+				journalFinished(purchaseToken, billingResult);
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && entitlements.onConsumed(purchaseToken)) {
+					deliverEntitlementsChanged();
+				}
+			}
+		}, operationQueue, metrics, trace);
+		purchasesCache = operations.purchasesCache;
 		calledStartConnection = false;
 		obfuscatedAccountId = "";
 		obfuscatedProfileId = "";
 	}
 
 	public void startConnection() {
-		calledStartConnection = true;
-		billingClient.startConnection(this);
+		synchronized (awaitingConnection) {
+			calledStartConnection = true;
+			connecting = true;
+		}
+		if (purchaseJournalEnabled) {
+			purchaseJournal.load();
+			journalReplayPending = true;
+		}
+		operationQueue.onConnectionRequested();
+		connectStartNanos = BillingMetrics.start();
+		connectSpan = trace.begin("connection", "startConnection", null);
+		getBackend().startConnection(this);
+	}
+
+	private BillingBackend getBackend() {
+		BillingBackend current = backend;
+		if (current == null) {
+			synchronized (this) {
+				if (backend == null) {
+					backend = new PlayBillingBackend(getActivity(), this);
+					queryCoalescer.setBackend(backend);
+				}
+				current = backend;
+			}
+		}
+		return current;
+	}
+
+	// Off by default: the first query, acknowledgePurchase or consumePurchase calls startConnection
+	// itself and waits for the connection, so startConnection doesn't have to be called at boot.
+	@UsedByGodot
+	public void setConnectOnFirstUse(boolean enabled) {
+		connectOnFirstUse = enabled;
+	}
+
+	// Calls startConnection once the main thread is idle, delayMs after this call, unless
+	// something connected first. Lets the shop be warm without touching the cold start.
+	@UsedByGodot
+	public void connectInBackground(int delayMs) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+							@Override
+							public boolean queueIdle() {
+								startConnectionIfNeeded();
+								return false;
+							}
+						});
+					}
+				});
+			}
+		}, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+	}
+
+	private void startConnectionIfNeeded() {
+		synchronized (awaitingConnection) {
+			if (calledStartConnection) {
+				return;
+			}
+			calledStartConnection = true;
+			connecting = true;
+		}
+		startConnection();
+	}
+
+	private void runWhenConnected(Runnable call) {
+		boolean start = false;
+		synchronized (awaitingConnection) {
+			if (connectOnFirstUse && !calledStartConnection) {
+				calledStartConnection = true;
+				connecting = true;
+				start = true;
+			}
+			if (connecting) {
+				awaitingConnection.add(call);
+				call = null;
+			}
+		}
+		if (start) {
+			startConnection();
+		}
+		if (call != null) {
+			call.run();
+		}
+	}
+
+	// Failed setups, disconnects and endConnection release the calls too, they then report
+	// the error like any other call.
+	private void releaseAwaitingConnection() {
+		List<Runnable> calls;
+		synchronized (awaitingConnection) {
+			connecting = false;
+			calls = new ArrayList<>(awaitingConnection);
+			awaitingConnection.clear();
+		}
+		for (Runnable call : calls) {
+			call.run();
+		}
+	}
+
+	private void submitWhenConnected(final BillingOperationQueue.Operation operation) {
+		runWhenConnected(new Runnable() {
+			@Override
+			public void run() {
+				operationQueue.submit(operation);
+			}
+		});
+	}
+
+	// Same as startConnection, then queries everything in the manifest at once when connected
+	// ({"inapp": [product ids], "subs": [product ids], "purchases": true}) and emits billing_ready
+	// with all results. Products are cached, so purchase() works as soon as billing_ready arrives.
+	@UsedByGodot
+	public void startConnectionWithPrefetch(Dictionary manifest) {
+		prefetchManifest = manifest;
+		startConnection();
 	}
 
 	public void endConnection() {
-		billingClient.endConnection();
+		productDetailsSupported = null;
+		purchasesCache.invalidate();
+		operationQueue.onEndConnection();
+		BillingBackend current = backend;
+		if (current != null) {
+			current.endConnection();
+		}
+		metrics.onDisconnected();
+		trace.instant("connection", "endConnection", null, FlightRecorder.NO_CODE);
+		releaseAwaitingConnection();
+	}
+
+	// On by default: purchases waiting for acknowledgePurchase/consumePurchase are written to disk and
+	// emitted again with unfinished_purchases_recovered after the next connection.
+	@UsedByGodot
+	public void setPurchaseJournalEnabled(boolean enabled) {
+		purchaseJournalEnabled = enabled;
+	}
+
+	private void journalPurchases(List<Purchase> purchases) {
+		if (!purchaseJournalEnabled || purchases == null) {
+			return;
+		}
+		for (Purchase purchase : purchases) {
+			if (purchase.isAcknowledged()) {
+				purchaseJournal.recordFinished(purchase.getPurchaseToken());
+			} else if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+				purchaseJournal.recordPurchase(purchase);
+			}
+		}
+	}
+
+	private void journalFinished(String purchaseToken, BillingResult billingResult) {
+		int responseCode = billingResult.getResponseCode();
+		// ITEM_NOT_OWNED: already consumed or refunded, nothing left to finish.
+		if (purchaseJournalEnabled && (responseCode == BillingClient.BillingResponseCode.OK
+				|| responseCode == BillingClient.BillingResponseCode.ITEM_NOT_OWNED)) {
+			purchaseJournal.recordFinished(purchaseToken);
+		}
+	}
+
+	// Every signal goes out from the frame loop, at most maxSignalsPerFrame per frame
+	// (default 4, 0 for no limit), so large results don't cause a frame hitch.
+	@UsedByGodot
+	public void setMaxSignalsPerFrame(int maxSignalsPerFrame) {
+		signalDispatcher.setMaxSignalsPerFrame(maxSignalsPerFrame);
+	}
+
+	private void deliverSignal(String signal, Object... args) {
+		signalDispatcher.post(signal, args);
+	}
+
+	// Godot calls one of these once per frame on its render thread, depending on the renderer.
+	@Override
+	public void onGLDrawFrame(GL10 gl) {
+		signalDispatcher.onFrame();
+	}
+
+	@Override
+	public void onVkDrawFrame() {
+		signalDispatcher.onFrame();
+	}
+
+	// Serves every billing call from an in-process simulator instead of Google Play, see
+	// SimulatedBillingBackend for the script format. Must be called before startConnection.
+	@UsedByGodot
+	public Dictionary enableBillingSimulator(Dictionary script) {
+		Dictionary returnValue = new Dictionary();
+		if (calledStartConnection) {
+			returnValue.put("status", 1); // FAILED = 1
+			returnValue.put("debug_message", "enableBillingSimulator must be called before startConnection");
+			return returnValue;
+		}
+		SimulatedBillingBackend simulator;
+		try {
+			simulator = new SimulatedBillingBackend(this, script);
+		} catch (IllegalArgumentException e) {
+			returnValue.put("status", 1); // FAILED = 1
+			returnValue.put("debug_message", e.getMessage());
+			return returnValue;
+		}
+		synchronized (this) {
+			backend = simulator;
+			queryCoalescer.setBackend(simulator);
+		}
+		returnValue.put("status", 0); // OK = 0
+		return returnValue;
+	}
+
+	// queryPurchases results younger than windowMs are answered without asking Play again (default
+	// 10 seconds, 0 to always ask). Purchase updates, acknowledgements and consumptions clear it.
+	@UsedByGodot
+	public void setPurchasesCacheWindow(int windowMs) {
+		purchasesCache.setStalenessMillis(windowMs);
+	}
+
+	// Opt-in: reconnect with backoff after a disconnect and hold queryPurchases, acknowledgePurchase
+	// and consumePurchase calls made meanwhile (at most maxQueued), replaying them once connected.
+	@UsedByGodot
+	public void setAutoReconnect(boolean enabled, int maxAttempts, int maxQueued) {
+		operationQueue.configure(enabled, maxAttempts, maxQueued);
 	}
 	@UsedByGodot
 	public boolean isReady() {
-		return this.billingClient.isReady();
+		BillingBackend current = backend;
+		return current != null && current.isReady();
 	}
 	@UsedByGodot
 	public int getConnectionState() {
-		return billingClient.getConnectionState();
+		BillingBackend current = backend;
+		return current != null ? current.getConnectionState() : BillingClient.ConnectionState.DISCONNECTED;
 	}
 
 	@UsedByGodot
 	public void queryPurchases(String type) { //type "inapp" or "subs"
-		billingClient.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(type).build(),
-			new PurchasesResponseListener() {
+		queryPurchasesWithFields(type, null);
+	}
+
+	// Same as queryPurchases, but only the listed top-level keys are built in the purchase dictionaries.
+	@UsedByGodot
+	public void queryPurchasesWithFields(final String type, String[] fields) {
+		final FieldProjection projection = FieldProjection.of(fields);
+		queryPurchasesInternal(type, new PurchasesResponseListener() {
 			@Override
-			public void onQueryPurchasesResponse(BillingResult billingResult,
-					List<Purchase> purchaseList) {
-				Dictionary returnValue = new Dictionary();
-				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-					returnValue.put("status", 0); // OK = 0
-					returnValue.put("purchases", GooglePlayBillingUtils.convertPurchaseListToDictionaryObjectArray(purchaseList));
-				} else {
-					returnValue.put("status", 1); // FAILED = 1
-					returnValue.put("response_code", billingResult.getResponseCode());
-					returnValue.put("debug_message", billingResult.getDebugMessage());
-				}
-				emitSignal("query_purchases_response", (Object)returnValue);
+			public void onQueryPurchasesResponse(final BillingResult billingResult,
+					final List<Purchase> purchaseList) {
+				conversionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && purchaseDeltaMode) {
+							emitPurchasesDelta("query", type, purchaseSnapshot.applyQuery(type, purchaseList), projection, signatureResults(purchaseList));
+							return;
+						}
+						if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && packedResults) {
+							deliverSignal("query_purchases_response_packed", (Object)BillingBinaryEncoder.encodePurchaseList(purchaseList));
+							return;
+						}
+						deliverSignal("query_purchases_response", (Object)buildQueryPurchasesResponse(billingResult, purchaseList, projection));
+					}
+				});
 			}
 		});
 	}
 
+	// Queries "inapp" and "subs" at the same time and emits both lists in one signal.
 	@UsedByGodot
-	public void queryProductDetails(final String[] list, String type){
-		BillingResult featureChecker = billingClient.isFeatureSupported(BillingClient.FeatureType.PRODUCT_DETAILS);
-		if (featureChecker.getResponseCode() == BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED){
-			emitSignal("feature_not_supported");
+	public void queryAllPurchases() {
+		final String[] types = { BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS };
+		final Dictionary[] responses = new Dictionary[types.length];
+		final AtomicInteger remaining = new AtomicInteger(types.length);
+		for (int i = 0; i < types.length; i++) {
+			final int index = i;
+			queryPurchasesInternal(types[i], new PurchasesResponseListener() {
+				@Override
+				public void onQueryPurchasesResponse(final BillingResult billingResult,
+						final List<Purchase> purchaseList) {
+					conversionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							responses[index] = buildQueryPurchasesResponse(billingResult, purchaseList, FieldProjection.ALL);
+							if (remaining.decrementAndGet() != 0) {
+								return;
+							}
+							Dictionary returnValue = new Dictionary();
+							int status = 0; // OK = 0
+							for (int t = 0; t < types.length; t++) {
+								returnValue.put(types[t], responses[t]);
+								if ((int)responses[t].get("status") != 0) {
+									status = 1; // FAILED = 1, at least one type failed, the other one is still usable
+								}
+							}
+							returnValue.put("status", status);
+							deliverSignal("query_all_purchases_response", (Object)returnValue);
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private void emitPurchasesDelta(String source, String type, PurchaseSnapshot.Delta delta, FieldProjection projection,
+			@Nullable Map<String, Boolean> signatureResults) {
+		Dictionary returnValue = new Dictionary();
+		returnValue.put("source", source); // "query" or "update"
+		returnValue.put("type", type); // null for updates of products not queried yet
+		returnValue.put("added", convertPurchases(delta.added, projection, signatureResults));
+		returnValue.put("changed", convertPurchases(delta.changed, projection, signatureResults));
+		returnValue.put("removed", delta.removed.toArray(new String[0]));
+		deliverSignal("purchases_delta", (Object)returnValue);
+	}
+
+	// Instead of full lists, queryPurchases and purchase updates emit purchases_delta with the
+	// purchases added, changed (state, acknowledgement, auto renewing) or removed since the last time.
+	@UsedByGodot
+	public void setPurchaseDeltaMode(boolean enabled) {
+		purchaseDeltaMode = enabled;
+		if (!enabled) {
+			purchaseSnapshot.clear();
+		}
+	}
+
+	// Configures on-device signature verification with the base64 RSA public key from the Play Console,
+	// purchase dictionaries then get a "signature_valid" field. An empty key turns it off.
+	@UsedByGodot
+	public boolean setPurchaseVerificationKey(String base64PublicKey) {
+		if (base64PublicKey == null || base64PublicKey.isEmpty()) {
+			signatureVerifier = null;
+			return true;
+		}
+		try {
+			synchronized (this) {
+				if (verificationExecutor == null) {
+					verificationExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+				}
+			}
+			signatureVerifier = new PurchaseSignatureVerifier(base64PublicKey, verificationExecutor);
+			return true;
+		} catch (GeneralSecurityException e) {
+			Log.w(getPluginName(), "Invalid purchase verification key", e);
+			signatureVerifier = null;
+			return false;
+		}
+	}
+
+	// Hands the purchase token -> signature valid results to next once every signature is verified,
+	// null right away when verification is off.
+	private void verifyPurchases(List<Purchase> purchases, final PurchaseSignatureVerifier.Callback next) {
+		PurchaseSignatureVerifier verifier = signatureVerifier;
+		if (verifier == null) {
+			next.onVerified(null);
+			return;
+		}
+		if (purchases.isEmpty()) {
+			next.onVerified(Collections.<String, Boolean>emptyMap());
 			return;
+		}
+		verifier.verifyAll(purchases, next);
+	}
+
+	// Purchases whose signature failed verification don't grant entitlements.
+	private static List<Purchase> trustedPurchases(List<Purchase> purchases, @Nullable Map<String, Boolean> signatureResults) {
+		if (signatureResults == null) {
+			return purchases;
+		}
+		List<Purchase> trusted = new ArrayList<>(purchases.size());
+		for (Purchase purchase : purchases) {
+			if (Boolean.TRUE.equals(signatureResults.get(purchase.getPurchaseToken()))) {
+				trusted.add(purchase);
+			}
+		}
+		return trusted;
+	}
+
+	// Query results keep their verification results, so they travel through purchasesCache to
+	// every listener converting them.
+	private static final class VerifiedPurchaseList extends ArrayList<Purchase> {
+		final Map<String, Boolean> signatureResults;
+
+		VerifiedPurchaseList(List<Purchase> purchases, Map<String, Boolean> signatureResults) {
+			super(purchases);
+			this.signatureResults = signatureResults;
+		}
+	}
+
+	@Nullable
+	private static Map<String, Boolean> signatureResults(List<Purchase> purchases) {
+		return purchases instanceof VerifiedPurchaseList ? ((VerifiedPurchaseList)purchases).signatureResults : null;
+	}
+
+	private void deliverEntitlementsChanged() {
+		deliverSignal("entitlements_changed", (Object)entitlements.toDictionary());
+	}
+
+	// Answered from the entitlement index without a Play round-trip, so it is cheap enough for
+	// per-frame checks. Only reflects purchases seen since startup: call queryPurchases once
+	// after connecting to fill it.
+	@UsedByGodot
+	public boolean hasEntitlement(String productId) {
+		return entitlements.hasEntitlement(productId);
+	}
+
+	// Product id -> entitlement (purchase token, state, acknowledged, auto renewing), pending purchases included.
+	@UsedByGodot
+	public Dictionary getEntitlements() {
+		return entitlements.toDictionary();
+	}
+
+	// signatureResults comes from verifyPurchases, null when verification was off.
+	private static Object[] convertPurchases(List<Purchase> purchases, FieldProjection projection, @Nullable Map<String, Boolean> signatureResults) {
+		Object[] dictionaries = GooglePlayBillingUtils.convertPurchaseListToDictionaryObjectArray(purchases, projection);
+		if (signatureResults != null) {
+			for (int i = 0; i < dictionaries.length; i++) {
+				((Dictionary)dictionaries[i]).put("signature_valid", Boolean.TRUE.equals(signatureResults.get(purchases.get(i).getPurchaseToken())));
 			}
-		List<String> pList = Arrays.asList(list);
-
-		ArrayList<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-		for(String p : pList) {
-			productList.add(
-				QueryProductDetailsParams.Product.newBuilder()
-					.setProductId(p)
-					.setProductType(type)
-					.build()
-			);
-		}
-		QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
-        												.setProductList(productList)
-        												.build();
-														
-		billingClient.queryProductDetailsAsync(params, new ProductDetailsResponseListener() {
+		}
+		return dictionaries;
+	}
+
+	private Dictionary buildQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchaseList, FieldProjection projection) {
+		Dictionary returnValue = new Dictionary();
+		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+			returnValue.put("status", 0); // OK = 0
+			returnValue.put("purchases", convertPurchases(purchaseList, projection, signatureResults(purchaseList)));
+		} else {
+			returnValue.put("status", 1); // FAILED = 1
+			returnValue.put("response_code", billingResult.getResponseCode());
+			returnValue.put("debug_message", billingResult.getDebugMessage());
+		}
+		return returnValue;
+	}
+
+	private void queryPurchasesInternal(String type, PurchasesResponseListener listener) {
+		operations.queryPurchases(type, listener);
+	}
+
+	@UsedByGodot
+	public void queryProductDetails(final String[] list, String type){
+		queryProductDetailsWithFields(list, type, null);
+	}
+
+	// Same as queryProductDetails, but only the listed top-level keys are built in the product
+	// dictionaries (e.g. ["product_id", "product_title", "product_one_time_purchase_offer"]).
+	@UsedByGodot
+	public void queryProductDetailsWithFields(final String[] list, final String type, String[] fields){
+		final FieldProjection projection = FieldProjection.of(fields);
+		featureExecutor.execute(new Runnable() {
 			@Override
-			public void onProductDetailsResponse(BillingResult billingResult, 
-					List<ProductDetails> productDetailsList) {
-				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-					for (ProductDetails pDetails : productDetailsList) {
-						ProductDetailsCache.put(pDetails.getProductId(), pDetails);
+			public void run() {
+				if (!isProductDetailsSupported()) {
+					deliverSignal("feature_not_supported");
+					return;
+				}
+				queryProductDetailsInternal(Arrays.asList(list), type, new ProductDetailsResponseListener() {
+					@Override
+					public void onProductDetailsResponse(final BillingResult billingResult,
+							final List<ProductDetails> productDetailsList) {
+						conversionExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								deliverProductDetails(list, projection, billingResult, productDetailsList);
+							}
+						});
 					}
-					emitSignal("product_details_query_completed", (Object)GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(productDetailsList));
-				} else {
-					emitSignal("product_details_query_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), list);
+				});
+			}
+		});
+	}
+
+	// Streams a large catalog: the ids are split into pages of pageSize, at most maxConcurrentPages are
+	// queried at a time, and every page is emitted with product_details_page (or product_details_page_error)
+	// as soon as it arrives, then product_details_paged_completed. Returns the query_id of the signals.
+	@UsedByGodot
+	public int queryProductDetailsPaged(final String[] list, final String type, int pageSize, int maxConcurrentPages) {
+		final int queryId = pagedQueryIds.incrementAndGet();
+		final int size = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+		final int lanes = maxConcurrentPages > 0 ? maxConcurrentPages : DEFAULT_MAX_CONCURRENT_PAGES;
+		featureExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!isProductDetailsSupported()) {
+					deliverSignal("feature_not_supported");
+					return;
 				}
+				new PagedQuery(queryId, list, type, size).start(lanes);
 			}
 		});
+		return queryId;
+	}
+
+	private class PagedQuery {
+		final int queryId;
+		final String[] productIds;
+		final String type;
+		final int pageSize;
+		final int pageCount;
+		final long startNanos = BillingMetrics.start();
+		final AtomicInteger nextPage = new AtomicInteger();
+		final AtomicInteger remainingPages;
+		final AtomicInteger productCount = new AtomicInteger();
+		final AtomicInteger failedPages = new AtomicInteger();
+
+		PagedQuery(int queryId, String[] productIds, String type, int pageSize) {
+			this.queryId = queryId;
+			this.productIds = productIds;
+			this.type = type;
+			this.pageSize = pageSize;
+			this.pageCount = (productIds.length + pageSize - 1) / pageSize;
+			this.remainingPages = new AtomicInteger(pageCount);
+		}
+
+		void start(int lanes) {
+			if (pageCount == 0) {
+				complete();
+				return;
+			}
+			for (int i = 0; i < Math.min(lanes, pageCount); i++) {
+				queryNextPage();
+			}
+		}
+
+		// Each finished page starts the next one, so at most `lanes` pages are in flight.
+		private void queryNextPage() {
+			final int page = nextPage.getAndIncrement();
+			if (page >= pageCount) {
+				return;
+			}
+			final List<String> pageIds = Arrays.asList(productIds).subList(page * pageSize, Math.min(productIds.length, (page + 1) * pageSize));
+			queryProductDetailsInternal(pageIds, type, new ProductDetailsResponseListener() {
+				@Override
+				public void onProductDetailsResponse(final BillingResult billingResult,
+						final List<ProductDetails> productDetailsList) {
+					queryNextPage();
+					conversionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							deliverPage(page, pageIds, billingResult, productDetailsList);
+						}
+					});
+				}
+			});
+		}
+
+		private void deliverPage(int page, List<String> pageIds, BillingResult billingResult, List<ProductDetails> productDetailsList) {
+			Dictionary returnValue = new Dictionary();
+			returnValue.put("query_id", queryId);
+			returnValue.put("page", page);
+			returnValue.put("page_count", pageCount);
+			if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+				Object[] productDictionaries = GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(productDetailsList);
+				catalogStore.putAll(productDictionaries);
+				productCount.addAndGet(productDictionaries.length);
+				returnValue.put("products", productDictionaries);
+				deliverSignal("product_details_page", (Object)returnValue);
+			} else {
+				failedPages.incrementAndGet();
+				returnValue.put("response_code", billingResult.getResponseCode());
+				returnValue.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(billingResult.getResponseCode()));
+				returnValue.put("debug_message", billingResult.getDebugMessage());
+				returnValue.put("product_ids", pageIds.toArray(new String[0]));
+				deliverSignal("product_details_page_error", (Object)returnValue);
+			}
+			if (remainingPages.decrementAndGet() == 0) {
+				complete();
+			}
+		}
+
+		private void complete() {
+			Dictionary returnValue = new Dictionary();
+			returnValue.put("query_id", queryId);
+			returnValue.put("status", failedPages.get() == 0 ? 0 : 1); // OK = 0, FAILED = 1 if any page failed
+			returnValue.put("page_count", pageCount);
+			returnValue.put("failed_pages", failedPages.get());
+			returnValue.put("product_count", productCount.get());
+			returnValue.put("elapsed_ms", (System.nanoTime() - startNanos) / 1000000L);
+			deliverSignal("product_details_paged_completed", (Object)returnValue);
+		}
+	}
+
+	// isFeatureSupported blocks on the Play service, so it's asked once per connection, on featureExecutor.
+	private boolean isProductDetailsSupported() {
+		Boolean supported = productDetailsSupported;
+		if (supported != null) {
+			return supported;
+		}
+		int responseCode = getBackend().isFeatureSupported(BillingClient.FeatureType.PRODUCT_DETAILS).getResponseCode();
+		if (responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED) {
+			return true; // unknown until connected, the query itself reports the error
+		}
+		supported = responseCode != BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED;
+		productDetailsSupported = supported;
+		return supported;
+	}
+
+	private void deliverProductDetails(String[] list, FieldProjection projection, BillingResult billingResult, List<ProductDetails> productDetailsList) {
+		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && packedResults) {
+			deliverSignal("product_details_query_completed_packed", (Object)BillingBinaryEncoder.encodeProductDetailsList(productDetailsList));
+		} else if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+			Object[] productDictionaries = GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(productDetailsList, projection);
+			// Projected results would need the full tree built again just for the snapshot, so only
+			// full queries refresh it.
+			if (projection.isAll()) {
+				catalogStore.putAll(productDictionaries);
+			}
+			deliverSignal("product_details_query_completed", (Object)productDictionaries);
+		} else {
+			deliverSignal("product_details_query_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), list);
+		}
+	}
+
+	// Every product details answer from Play goes through here, so ProductDetailsCache is always filled.
+	private void queryProductDetailsInternal(final List<String> pList, final String type, final ProductDetailsResponseListener listener) {
+		getBackend();
+		runWhenConnected(new Runnable() {
+			@Override
+			public void run() {
+				final long startNanos = BillingMetrics.start();
+				final int span = trace.begin("billing", "queryProductDetails", pList);
+				queryCoalescer.query(pList, type, new ProductDetailsResponseListener() {
+					@Override
+					public void onProductDetailsResponse(BillingResult billingResult,
+							List<ProductDetails> productDetailsList) {
+						metrics.record("queryProductDetails", startNanos, billingResult.getResponseCode());
+						trace.end("billing", "queryProductDetails", span, billingResult.getResponseCode());
+						if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+							for (ProductDetails pDetails : productDetailsList) {
+								ProductDetailsCache.put(pDetails.getProductId(), pDetails);
+								offerIndex.index(pDetails);
+							}
+						}
+						listener.onProductDetailsResponse(billingResult, productDetailsList);
+					}
+				});
+			}
+		});
+	}
+
+	// Queries issued within windowMs of each other are merged into one request per product type,
+	// split in batches of at most maxBatchSize products. A window of 0 only shares in-flight products.
+	@UsedByGodot
+	public void setQueryCoalescing(int windowMs, int maxBatchSize) {
+		queryCoalescer.configure(windowMs, maxBatchSize);
+	}
+
+	// ttlSeconds of 0 keeps product details until they are evicted by size.
+	@UsedByGodot
+	public void setProductDetailsCacheLimits(int maxEntries, int ttlSeconds) {
+		ProductDetailsCache.configure(maxEntries, ttlSeconds * 1000L);
+	}
+
+	@UsedByGodot
+	public Dictionary getProductDetailsCacheStats() {
+		return ProductDetailsCache.getStats();
+	}
+
+	// Returns the last known catalog from disk, so the store can render before the query completes.
+	// An empty list returns every product in the snapshot.
+	@UsedByGodot
+	public Object[] getCachedProductDetails(String[] list) {
+		return catalogStore.getProductDictionaries(list);
+	}
+
+	@UsedByGodot
+	public void setCatalogCacheTtl(int seconds) {
+		catalogStore.setTtlMillis(seconds * 1000L);
+	}
+
+	@UsedByGodot
+	public void clearCatalogCache() {
+		catalogStore.clear();
 	}
 
 	@UsedByGodot
 	public void acknowledgePurchase(final String purchaseToken) {
-		AcknowledgePurchaseParams acknowledgePurchaseParams =
-				AcknowledgePurchaseParams.newBuilder()
-						.setPurchaseToken(purchaseToken)
-						.build();
-		billingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
+		acknowledgePurchaseInternal(purchaseToken, new AcknowledgePurchaseResponseListener() {
 			@Override
 			public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
 				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-					emitSignal("purchase_acknowledged", purchaseToken);
+					deliverSignal("purchase_acknowledged", purchaseToken);
 				} else {
-					emitSignal("purchase_acknowledgement_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), purchaseToken);
+					deliverSignal("purchase_acknowledgement_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), purchaseToken);
 				}
 			}
 		});
 	}
 
+	private void acknowledgePurchaseInternal(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+		operations.acknowledgePurchase(purchaseToken, listener);
+	}
+
 	@UsedByGodot
 	public void consumePurchase(String purchaseToken) {
-		ConsumeParams consumeParams = ConsumeParams.newBuilder()
-											  .setPurchaseToken(purchaseToken)
-											  .build();
-
-		billingClient.consumeAsync(consumeParams, new ConsumeResponseListener() {
+		consumePurchaseInternal(purchaseToken, new ConsumeResponseListener() {
 			@Override
 			public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
 				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-					emitSignal("purchase_consumed", purchaseToken);
+					deliverSignal("purchase_consumed", purchaseToken);
 				} else {
-					emitSignal("purchase_consumption_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), purchaseToken);
+					deliverSignal("purchase_consumption_error", billingResult.getResponseCode(), billingResult.getDebugMessage(), purchaseToken);
 				}
 			}
 		});
 	}
 
+	private void consumePurchaseInternal(String purchaseToken, ConsumeResponseListener listener) {
+		operations.consumePurchase(purchaseToken, listener);
+	}
+
+	@UsedByGodot
+	public void setBatchConcurrency(int maxInFlight) {
+		batchConcurrency = maxInFlight > 0 ? maxInFlight : PurchaseTokenBatch.DEFAULT_CONCURRENCY;
+	}
+
+	@UsedByGodot
+	public void acknowledgePurchases(String[] purchaseTokens) {
+		new PurchaseTokenBatch(purchaseTokens, batchConcurrency, scheduler, new PurchaseTokenBatch.TokenAction() {
+			@Override
+			public void run(String purchaseToken, final PurchaseTokenBatch.Callback callback) {
+				acknowledgePurchaseInternal(purchaseToken, new AcknowledgePurchaseResponseListener() {
+					@Override
+					public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+						callback.onResult(billingResult);
+					}
+				});
+			}
+		}, new PurchaseTokenBatch.Completion() {
+			@Override
+			public void onBatchCompleted(Dictionary result) {
+				deliverSignal("acknowledge_purchases_completed", (Object)result);
+			}
+		}).start();
+	}
+
+	@UsedByGodot
+	public void consumePurchases(String[] purchaseTokens) {
+		new PurchaseTokenBatch(purchaseTokens, batchConcurrency, scheduler, new PurchaseTokenBatch.TokenAction() {
+			@Override
+			public void run(String purchaseToken, final PurchaseTokenBatch.Callback callback) {
+				consumePurchaseInternal(purchaseToken, new ConsumeResponseListener() {
+					@Override
+					public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
+						callback.onResult(billingResult);
+					}
+				});
+			}
+		}, new PurchaseTokenBatch.Completion() {
+			@Override
+			public void onBatchCompleted(Dictionary result) {
+				deliverSignal("consume_purchases_completed", (Object)result);
+			}
+		}).start();
+	}
+
 	@Override
 	public void onBillingSetupFinished(BillingResult billingResult) {
+		metrics.record("startConnection", connectStartNanos, billingResult.getResponseCode());
+		trace.end("connection", "startConnection", connectSpan, billingResult.getResponseCode());
 		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-			emitSignal("connected");
+			metrics.onConnected();
+			productDetailsSupported = null;
+			deliverSignal("connected");
+			operationQueue.onConnected();
+			final Dictionary manifest = prefetchManifest;
+			prefetchManifest = null;
+			featureExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final boolean supported = isProductDetailsSupported();
+					if (manifest != null) {
+						conversionExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								prefetch(manifest, supported);
+							}
+						});
+					}
+				}
+			});
+			if (purchaseJournalEnabled && journalReplayPending) {
+				journalReplayPending = false;
+				purchaseJournal.replay(new PurchaseJournal.ReplayCallback() {
+					@Override
+					public void onOutstandingPurchases(final List<Purchase> purchases) {
+						if (purchases.isEmpty()) {
+							return;
+						}
+						verifyPurchases(purchases, new PurchaseSignatureVerifier.Callback() {
+							@Override
+							public void onVerified(@Nullable final Map<String, Boolean> signatureResults) {
+								conversionExecutor.execute(new Runnable() {
+									@Override
+									public void run() {
+										deliverSignal("unfinished_purchases_recovered", (Object)convertPurchases(purchases, FieldProjection.ALL, signatureResults));
+									}
+								});
+							}
+						});
+					}
+				});
+			}
 		} else {
-			emitSignal("connect_error", billingResult.getResponseCode(), billingResult.getDebugMessage());
+			deliverSignal("connect_error", billingResult.getResponseCode(), billingResult.getDebugMessage());
+			operationQueue.onConnectFailed(billingResult.getResponseCode());
 		}
+		releaseAwaitingConnection();
+	}
+
+	// Runs every query of the manifest concurrently; the results are collected on the
+	// conversion thread and emitted together with billing_ready.
+	private void prefetch(Dictionary manifest, boolean detailsSupported) {
+		final long startNanos = BillingMetrics.start();
+		final String[] types = { BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS };
+		final List<Object> products = new ArrayList<>();
+		final Dictionary purchases = new Dictionary();
+		final Dictionary errors = new Dictionary();
+		boolean loadPurchases = Boolean.TRUE.equals(manifest.get("purchases"));
+		List<List<String>> productIds = new ArrayList<>();
+		int queries = loadPurchases ? types.length : 0;
+		for (String type : types) {
+			List<String> ids = toStringList(manifest.get(type));
+			productIds.add(ids);
+			if (!ids.isEmpty()) {
+				queries += 1;
+			}
+		}
+		final AtomicInteger remaining = new AtomicInteger(queries);
+		final Runnable finish = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() > 0) {
+					return;
+				}
+				Dictionary returnValue = new Dictionary();
+				returnValue.put("status", errors.isEmpty() ? 0 : 1); // OK = 0, FAILED = 1, what did arrive is still usable
+				returnValue.put("products", products.toArray());
+				returnValue.put("purchases", purchases);
+				returnValue.put("errors", errors);
+				returnValue.put("elapsed_ms", (System.nanoTime() - startNanos) / 1000000L);
+				deliverSignal("billing_ready", (Object)returnValue);
+			}
+		};
+		if (queries == 0) {
+			remaining.set(1);
+			finish.run();
+			return;
+		}
+		for (int i = 0; i < types.length; i++) {
+			final String type = types[i];
+			if (productIds.get(i).isEmpty()) {
+				continue;
+			}
+			if (!detailsSupported) {
+				errors.put("product_details_" + type, prefetchError(BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED, ""));
+				finish.run();
+				continue;
+			}
+			queryProductDetailsInternal(productIds.get(i), type, new ProductDetailsResponseListener() {
+				@Override
+				public void onProductDetailsResponse(final BillingResult billingResult,
+						final List<ProductDetails> productDetailsList) {
+					conversionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+								Object[] productDictionaries = GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(productDetailsList);
+								catalogStore.putAll(productDictionaries);
+								products.addAll(Arrays.asList(productDictionaries));
+							} else {
+								errors.put("product_details_" + type, prefetchError(billingResult.getResponseCode(), billingResult.getDebugMessage()));
+							}
+							finish.run();
+						}
+					});
+				}
+			});
+		}
+		if (!loadPurchases) {
+			return;
+		}
+		for (final String type : types) {
+			queryPurchasesInternal(type, new PurchasesResponseListener() {
+				@Override
+				public void onQueryPurchasesResponse(final BillingResult billingResult,
+						final List<Purchase> purchaseList) {
+					conversionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+								if (purchaseDeltaMode) {
+									purchaseSnapshot.applyQuery(type, purchaseList); // later deltas are relative to this list
+								}
+								purchases.put(type, convertPurchases(purchaseList, FieldProjection.ALL, signatureResults(purchaseList)));
+							} else {
+								errors.put("purchases_" + type, prefetchError(billingResult.getResponseCode(), billingResult.getDebugMessage()));
+							}
+							finish.run();
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private static Dictionary prefetchError(int responseCode, String debugMessage) {
+		Dictionary error = new Dictionary();
+		error.put("response_code", responseCode);
+		error.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(responseCode));
+		error.put("debug_message", debugMessage);
+		return error;
+	}
+
+	// Godot passes Arrays as Object[] and PackedStringArrays as String[].
+	private static List<String> toStringList(Object value) {
+		List<String> strings = new ArrayList<>();
+		if (value instanceof Object[]) {
+			for (Object o : (Object[])value) {
+				strings.add(String.valueOf(o));
+			}
+		}
+		return strings;
 	}
 
 	@Override
 	public void onBillingServiceDisconnected() {
-		emitSignal("disconnected");
+		metrics.onDisconnected();
+		trace.instant("connection", "onBillingServiceDisconnected", null, FlightRecorder.NO_CODE);
+		productDetailsSupported = null;
+		deliverSignal("disconnected");
+		operationQueue.onDisconnected();
+		releaseAwaitingConnection();
 	}
 
 	@UsedByGodot
 	public Dictionary purchase(String product_id) {
 		return purchaseInternal("", product_id, 
-			BillingFlowParams.SubscriptionUpdateParams.ReplacementMode.UNKNOWN_REPLACEMENT_MODE);
+			BillingFlowParams.SubscriptionUpdateParams.ReplacementMode.UNKNOWN_REPLACEMENT_MODE, null);
 			//BillingFlowParams.ProrationMode.UNKNOWN_SUBSCRIPTION_UPGRADE_DOWNGRADE_POLICY);
 	}
+
+	// Purchases one offer of a subscription, offer_id "" for the base plan offer.
+	@UsedByGodot
+	public Dictionary purchaseOffer(String product_id, String basePlanId, String offerId) {
+		return purchaseInternal("", product_id,
+			BillingFlowParams.SubscriptionUpdateParams.ReplacementMode.UNKNOWN_REPLACEMENT_MODE,
+			SubscriptionOfferIndex.Selector.exact(basePlanId, offerId));
+	}
+
+	// Purchases the offer the user pays least for now (then least once renewing) among the
+	// offers with the tag, or among all offers if tag is "".
+	@UsedByGodot
+	public Dictionary purchaseCheapestOffer(String product_id, String tag) {
+		return purchaseInternal("", product_id,
+			BillingFlowParams.SubscriptionUpdateParams.ReplacementMode.UNKNOWN_REPLACEMENT_MODE,
+			SubscriptionOfferIndex.Selector.cheapestWithTag(tag));
+	}
+
+	// The offer purchaseCheapestOffer would pick, for rendering the paywall.
+	@UsedByGodot
+	public Dictionary getCheapestOffer(String product_id, String tag) {
+		SubscriptionOfferIndex.Offer offer = ProductDetailsCache.isFresh(product_id) ? offerIndex.getCheapestOffer(product_id, tag) : null;
+		Dictionary returnValue = new Dictionary();
+		if (offer == null) {
+			returnValue.put("status", 1); // FAILED = 1
+			returnValue.put("debug_message", "No offer of " + product_id + " matches, query its product details first");
+			return returnValue;
+		}
+		returnValue.put("status", 0); // OK = 0
+		returnValue.put("offer", offer.toDictionary());
+		return returnValue;
+	}
+
+	// Every offer of a subscription as a flat list, with first phase and recurring prices.
+	@UsedByGodot
+	public Object[] getSubscriptionOffers(String product_id) {
+		if (!ProductDetailsCache.isFresh(product_id)) {
+			return new Object[0];
+		}
+		return offerIndex.getOfferDictionaries(product_id);
+	}
 	@UsedByGodot
 	public Dictionary updateSubscription(String oldToken, String product_id, Object prorationMode) {
 		if (prorationMode instanceof String) {
 			prorationMode = GooglePlayBillingUtils.recurrenceModeHintStringToInt((String)prorationMode);
 		}
-		return purchaseInternal(oldToken, product_id, (int)prorationMode);
+		return purchaseInternal(oldToken, product_id, (int)prorationMode, null);
 	}
 
-	private Dictionary purchaseInternal(String oldToken, String product_id, int prorationMode) {
-		if (!ProductDetailsCache.containsKey(product_id)) {
+	private Dictionary purchaseInternal(final String oldToken, final String product_id, final int prorationMode,
+			@Nullable final SubscriptionOfferIndex.Selector offerSelector) {
+		ProductDetails cachedDetails = ProductDetailsCache.get(product_id);
+		if (cachedDetails == null) {
+			ProductDetails expiredDetails = ProductDetailsCache.getIgnoringExpiry(product_id);
+			String productType = expiredDetails != null ? expiredDetails.getProductType() : catalogStore.getProductType(product_id);
+			if (productType != null) {
+				// Expired, or only known from the catalog snapshot: revalidate it and launch the flow once Play answers.
+				queryProductDetailsInternal(Arrays.asList(product_id), productType, new ProductDetailsResponseListener() {
+					@Override
+					public void onProductDetailsResponse(BillingResult billingResult,
+							List<ProductDetails> productDetailsList) {
+						if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK || productDetailsList.isEmpty()) {
+							deliverSignal("purchase_error", billingResult.getResponseCode(), billingResult.getDebugMessage());
+							return;
+						}
+						ProductDetails productDetails = productDetailsList.get(0);
+						BillingResult result = launchBillingFlowInternal(oldToken, productDetails, prorationMode, offerSelector);
+						if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+							deliverSignal("purchase_error", result.getResponseCode(), result.getDebugMessage());
+						}
+					}
+				});
+				Dictionary returnValue = new Dictionary();
+				returnValue.put("status", 0); // OK = 0
+				returnValue.put("deferred", true); // launched after the cached product is revalidated, failures arrive as purchase_error
+				return returnValue;
+			}
 			Dictionary returnValue = new Dictionary();
 			returnValue.put("status", 1); // FAILED = 1
 			returnValue.put("response_code", null); // Null since there is no ResponseCode to return but to keep the interface (status, response_code, debug_message)
 			returnValue.put("debug_message", "You must query the product_id details and wait for the result before purchasing!");
 			return returnValue;
 		}
-		ProductDetails productDetails = ProductDetailsCache.get(product_id);
+		BillingResult result = launchBillingFlowInternal(oldToken, cachedDetails, prorationMode, offerSelector);
+
+		Dictionary returnValue = new Dictionary();
+		if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+			returnValue.put("status", 0); // OK = 0
+		} else {
+			returnValue.put("status", 1); // FAILED = 1
+			returnValue.put("response_code", result.getResponseCode());
+			returnValue.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(result.getResponseCode()));
+			returnValue.put("debug_message", result.getDebugMessage());
+		}
+
+		return returnValue;
+	}
+
+	private BillingResult launchBillingFlowInternal(String oldToken, ProductDetails productDetails, int prorationMode,
+			@Nullable SubscriptionOfferIndex.Selector offerSelector) {
+		BillingFlowParams.ProductDetailsParams.Builder productDetailsParams =
+				BillingFlowParams.ProductDetailsParams.newBuilder()
+					.setProductDetails(productDetails);
+		if (offerSelector != null) {
+			SubscriptionOfferIndex.Offer offer = offerSelector.select(offerIndex, productDetails.getProductId());
+			if (offer == null) {
+				return BillingResult.newBuilder()
+						.setResponseCode(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE)
+						.setDebugMessage("No matching offer for " + productDetails.getProductId())
+						.build();
+			}
+			productDetailsParams.setOfferToken(offer.offerToken);
+		}
 		ImmutableList<BillingFlowParams.ProductDetailsParams> productDetailsParamsList =
-				ImmutableList.of(
-						BillingFlowParams.ProductDetailsParams.newBuilder()
-							.setProductDetails(productDetails)
-							.build()
-				);
+				ImmutableList.of(productDetailsParams.build());
 
 		BillingFlowParams.Builder purchaseParamsBuilder = BillingFlowParams.newBuilder();
 		purchaseParamsBuilder.setProductDetailsParamsList(productDetailsParamsList);
@@ -259,22 +1321,73 @@ public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpda
 					.build();
 			purchaseParamsBuilder.setSubscriptionUpdateParams(updateParams);
 		}
-		BillingResult result = billingClient.launchBillingFlow(getActivity(), purchaseParamsBuilder.build());
+		long startNanos = BillingMetrics.start();
+		int span = trace.begin("billing", "launchBillingFlow", productDetails.getProductId());
+		BillingResult result = getBackend().launchBillingFlow(getActivity(), purchaseParamsBuilder.build(), productDetails);
+		metrics.record("launchBillingFlow", startNanos, result.getResponseCode());
+		trace.end("billing", "launchBillingFlow", span, result.getResponseCode());
+		return result;
+	}
+
+	// Successful product details and purchase results are sent as one byte array in the "_packed"
+	// signals instead of Dictionaries, see gdscript/google_play_billing_packed.gd to decode them.
+	@UsedByGodot
+	public void setPackedResults(boolean enabled) {
+		packedResults = enabled;
+	}
+
+	// Latency histograms and response codes per operation, connection uptime and cache hit rates.
+	@UsedByGodot
+	public Dictionary getMetrics() {
+		Dictionary returnValue = metrics.toDictionary();
+		returnValue.put("product_details_cache", ProductDetailsCache.getStats());
+		returnValue.put("purchases_cache", purchasesCache.getStats());
+		return returnValue;
+	}
+
+	// Emits metrics_report with getMetrics() every intervalSeconds, 0 stops it.
+	@UsedByGodot
+	public synchronized void setMetricsReportInterval(int intervalSeconds) {
+		if (metricsReport != null) {
+			metricsReport.cancel(false);
+			metricsReport = null;
+		}
+		if (intervalSeconds > 0) {
+			metricsReport = scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					deliverSignal("metrics_report", (Object)getMetrics());
+				}
+			}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+	}
 
+	// Writes the last billing events to path (absolute, or relative to the app's files directory)
+	// in the Chrome trace event format, to open in chrome://tracing or ui.perfetto.dev.
+	@UsedByGodot
+	public Dictionary dumpTrace(String path) {
 		Dictionary returnValue = new Dictionary();
-		if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+		File file = new File(path);
+		if (!file.isAbsolute()) {
+			file = new File(getActivity().getFilesDir(), path);
+		}
+		try {
+			returnValue.put("event_count", trace.dump(file));
+			returnValue.put("path", file.getAbsolutePath());
 			returnValue.put("status", 0); // OK = 0
-		} else {
+		} catch (IOException e) {
 			returnValue.put("status", 1); // FAILED = 1
-			returnValue.put("response_code", result.getResponseCode());
-			returnValue.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(result.getResponseCode()));
-			returnValue.put("debug_message", result.getDebugMessage());
+			returnValue.put("response_code", BillingClient.BillingResponseCode.ERROR);
+			returnValue.put("debug_message", e.getMessage());
 		}
-
 		return returnValue;
 	}
 
-
+	// Number of events kept for dumpTrace, FlightRecorder.DEFAULT_CAPACITY by default. 0 stops recording.
+	@UsedByGodot
+	public void setTraceBufferSize(int events) {
+		trace.setCapacity(events);
+	}
 
 	@UsedByGodot
 	public void setObfuscatedAccountId(String accountId) {
@@ -287,17 +1400,64 @@ public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpda
 
 	@Override
 	public void onPurchasesUpdated(final BillingResult billingResult, @Nullable final List<Purchase> list) {
+		trace.instant("billing", "onPurchasesUpdated", list != null ? purchasedProducts(list) : null, billingResult.getResponseCode());
+		purchasesCache.invalidate();
+		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+			journalPurchases(list);
+		}
 		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && list != null) {
-			emitSignal("purchases_updated", (Object)GooglePlayBillingUtils.convertPurchaseListToDictionaryObjectArray(list));
+			verifyPurchases(list, new PurchaseSignatureVerifier.Callback() {
+				@Override
+				public void onVerified(@Nullable Map<String, Boolean> signatureResults) {
+					if (entitlements.applyUpdate(trustedPurchases(list, signatureResults))) {
+						deliverEntitlementsChanged();
+					}
+					deliverPurchasesUpdated(billingResult, list, signatureResults);
+				}
+			});
+		} else {
+			deliverPurchasesUpdated(billingResult, list, null);
+		}
+	}
+
+	private static List<String> purchasedProducts(List<Purchase> purchases) {
+		List<String> products = new ArrayList<>();
+		for (Purchase purchase : purchases) {
+			products.addAll(purchase.getProducts());
+		}
+		return products;
+	}
+
+	private void deliverPurchasesUpdated(final BillingResult billingResult, @Nullable final List<Purchase> list,
+			@Nullable final Map<String, Boolean> signatureResults) {
+		conversionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				convertPurchasesUpdated(billingResult, list, signatureResults);
+			}
+		});
+	}
+
+	private void convertPurchasesUpdated(BillingResult billingResult, @Nullable List<Purchase> list,
+			@Nullable Map<String, Boolean> signatureResults) {
+		if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && list != null && purchaseDeltaMode) {
+			PurchaseSnapshot.Delta delta = purchaseSnapshot.applyUpdate(list);
+			if (!delta.isEmpty()) {
+				emitPurchasesDelta("update", null, delta, FieldProjection.ALL, signatureResults);
+			}
+		} else if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && list != null && packedResults) {
+			deliverSignal("purchases_updated_packed", (Object)BillingBinaryEncoder.encodePurchaseList(list));
+		} else if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && list != null) {
+			deliverSignal("purchases_updated", (Object)convertPurchases(list, FieldProjection.ALL, signatureResults));
 		} else {
-			emitSignal("purchase_error", billingResult.getResponseCode(), billingResult.getDebugMessage());
+			deliverSignal("purchase_error", billingResult.getResponseCode(), billingResult.getDebugMessage());
 		}
 	}
 
 	@Override
 	public void onMainResume() {
 		if (calledStartConnection) {
-			emitSignal("billing_resume");
+			deliverSignal("billing_resume");
 		}
 	}
 
@@ -313,7 +1473,7 @@ public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpda
 		// if product is not supported in user phone, will change format to querySkuDetails
 		// PriceChange not longer available to developer, deleted
 		// comfirmPriceChange
-		return Arrays.asList("startConnection", "endConnection", "purchase", "updateSubscription", "queryProductDetails", "isReady", "getConnectionState", "queryPurchases", "acknowledgePurchase", "consumePurchase", "setObfuscatedAccountId", "setObfuscatedProfileId");
+		return Arrays.asList("startConnection", "endConnection", "purchase", "updateSubscription", "queryProductDetails", "isReady", "getConnectionState", "queryPurchases", "acknowledgePurchase", "consumePurchase", "setObfuscatedAccountId", "setObfuscatedProfileId", "getCachedProductDetails", "setCatalogCacheTtl", "clearCatalogCache", "setQueryCoalescing", "setProductDetailsCacheLimits", "getProductDetailsCacheStats", "setAutoReconnect", "setBatchConcurrency", "acknowledgePurchases", "consumePurchases", "queryAllPurchases", "queryProductDetailsWithFields", "queryPurchasesWithFields", "setPackedResults", "setPurchaseDeltaMode", "setPurchaseJournalEnabled", "setPurchaseVerificationKey", "getMetrics", "setMetricsReportInterval", "enableBillingSimulator", "setMaxSignalsPerFrame", "startConnectionWithPrefetch", "setConnectOnFirstUse", "connectInBackground", "purchaseOffer", "purchaseCheapestOffer", "getCheapestOffer", "getSubscriptionOffers", "setPurchasesCacheWindow", "queryProductDetailsPaged", "dumpTrace", "setTraceBufferSize", "hasEntitlement", "getEntitlements");
 	}
 
 	@NonNull
@@ -322,17 +1482,24 @@ public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpda
 		Set<SignalInfo> signals = new ArraySet<>();
 
 		signals.add(new SignalInfo("connected"));
+		signals.add(new SignalInfo("billing_ready", Object.class));
 		signals.add(new SignalInfo("disconnected"));
 		signals.add(new SignalInfo("billing_resume"));
 		signals.add(new SignalInfo("connect_error", Integer.class, String.class));
 		signals.add(new SignalInfo("purchases_updated", Object[].class));
 		signals.add(new SignalInfo("query_purchases_response", Object.class));
+		signals.add(new SignalInfo("query_all_purchases_response", Object.class));
+		signals.add(new SignalInfo("purchases_delta", Object.class));
+		signals.add(new SignalInfo("unfinished_purchases_recovered", Object[].class));
 		signals.add(new SignalInfo("purchase_error", Integer.class, String.class));
 
 		// convert skuDetails to productDetails
 		signals.add(new SignalInfo("product_details_query_completed", Object[].class));
 		signals.add(new SignalInfo("product_details_query_error", Integer.class, String.class, String[].class));
 		signals.add(new SignalInfo("feature_not_supported"));
+		signals.add(new SignalInfo("product_details_page", Object.class));
+		signals.add(new SignalInfo("product_details_page_error", Object.class));
+		signals.add(new SignalInfo("product_details_paged_completed", Object.class));
 
 		// deprecated, "price_change_acknowledged" is not able to use
 		signals.add(new SignalInfo("purchase_acknowledged", String.class));
@@ -340,6 +1507,21 @@ public class GodotGooglePlayBilling extends GodotPlugin implements PurchasesUpda
 		signals.add(new SignalInfo("purchase_consumed", String.class));
 		signals.add(new SignalInfo("purchase_consumption_error", Integer.class, String.class, String.class));
 
+		// packed results, see BillingBinaryEncoder for the format
+		signals.add(new SignalInfo("product_details_query_completed_packed", byte[].class));
+		signals.add(new SignalInfo("query_purchases_response_packed", byte[].class));
+		signals.add(new SignalInfo("purchases_updated_packed", byte[].class));
+
+		// batch acknowledge/consume, one dictionary with the outcome of every token
+		signals.add(new SignalInfo("acknowledge_purchases_completed", Object.class));
+		signals.add(new SignalInfo("consume_purchases_completed", Object.class));
+
+		signals.add(new SignalInfo("metrics_report", Object.class));
+		signals.add(new SignalInfo("entitlements_changed", Object.class));
+
+		// resilient connection mode, operation name, detail (product type or purchase token), last response code
+		signals.add(new SignalInfo("retry_exhausted", String.class, String.class, Integer.class));
+
 		return signals;
 	}
 }
@@ -0,0 +1,133 @@
+/*************************************************************************/
+/*  PlayBillingBackend.java                                              */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// BillingBackend talking to Google Play through the Play Billing Library.
+class PlayBillingBackend implements BillingBackend {
+	private final BillingClient billingClient;
+
+	PlayBillingBackend(Activity activity, PurchasesUpdatedListener purchasesUpdatedListener) {
+		billingClient = BillingClient
+								.newBuilder(activity)
+								.enablePendingPurchases()
+								.setListener(purchasesUpdatedListener)
+								.build();
+	}
+
+	@Override
+	public void startConnection(BillingClientStateListener listener) {
+		billingClient.startConnection(listener);
+	}
+
+	@Override
+	public void endConnection() {
+		billingClient.endConnection();
+	}
+
+	@Override
+	public boolean isReady() {
+		return billingClient.isReady();
+	}
+
+	@Override
+	public int getConnectionState() {
+		return billingClient.getConnectionState();
+	}
+
+	@Override
+	public BillingResult isFeatureSupported(String feature) {
+		return billingClient.isFeatureSupported(feature);
+	}
+
+	@Override
+	public void queryProductDetailsAsync(List<String> productIds, String productType, ProductDetailsResponseListener listener) {
+		ArrayList<QueryProductDetailsParams.Product> productList = new ArrayList<>(productIds.size());
+		for (String productId : productIds) {
+			productList.add(
+				QueryProductDetailsParams.Product.newBuilder()
+					.setProductId(productId)
+					.setProductType(productType)
+					.build()
+			);
+		}
+		QueryProductDetailsParams params = QueryProductDetailsParams.newBuilder()
+												.setProductList(productList)
+												.build();
+		billingClient.queryProductDetailsAsync(params, listener);
+	}
+
+	@Override
+	public void queryPurchasesAsync(String productType, PurchasesResponseListener listener) {
+		billingClient.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(productType).build(), listener);
+	}
+
+	@Override
+	public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params, ProductDetails productDetails) {
+		return billingClient.launchBillingFlow(activity, params);
+	}
+
+	@Override
+	public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+		AcknowledgePurchaseParams acknowledgePurchaseParams =
+				AcknowledgePurchaseParams.newBuilder()
+						.setPurchaseToken(purchaseToken)
+						.build();
+		billingClient.acknowledgePurchase(acknowledgePurchaseParams, listener);
+	}
+
+	@Override
+	public void consumeAsync(String purchaseToken, ConsumeResponseListener listener) {
+		ConsumeParams consumeParams = ConsumeParams.newBuilder()
+											  .setPurchaseToken(purchaseToken)
+											  .build();
+		billingClient.consumeAsync(consumeParams, listener);
+	}
+}
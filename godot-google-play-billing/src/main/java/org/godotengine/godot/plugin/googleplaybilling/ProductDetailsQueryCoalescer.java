@@ -0,0 +1,228 @@
+/*************************************************************************/
+/*  ProductDetailsQueryCoalescer.java                                    */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Merges product details queries issued close together into one batched
+// queryProductDetailsAsync per product type, sharing in-flight product ids
+// between callers and routing each caller only the products it asked for.
+class ProductDetailsQueryCoalescer {
+	static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+	private BillingBackend backend;
+	private final ScheduledExecutorService scheduler;
+	private final HashMap<String, TypeQueue> queues = new HashMap<>();
+	private long windowMillis = 0;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	private static class TypeQueue {
+		final LinkedHashSet<String> pendingIds = new LinkedHashSet<>();
+		final HashSet<String> inFlightIds = new HashSet<>();
+		final HashMap<String, List<Caller>> waiters = new HashMap<>();
+		boolean flushScheduled;
+	}
+
+	private static class Caller {
+		final List<String> productIds;
+		final ProductDetailsResponseListener listener;
+		final HashMap<String, ProductDetails> results = new HashMap<>();
+		int remaining;
+		BillingResult error;
+
+		Caller(List<String> productIds, ProductDetailsResponseListener listener) {
+			this.productIds = productIds;
+			this.listener = listener;
+			this.remaining = productIds.size();
+		}
+
+		void complete() {
+			if (error != null) {
+				listener.onProductDetailsResponse(error, new ArrayList<ProductDetails>());
+				return;
+			}
+			ArrayList<ProductDetails> productDetailsList = new ArrayList<>(results.size());
+			for (String productId : productIds) {
+				ProductDetails details = results.get(productId);
+				if (details != null) {
+					productDetailsList.add(details);
+				}
+			}
+			listener.onProductDetailsResponse(okResult(), productDetailsList);
+		}
+	}
+
+	// setBackend must be called before the first query.
+	ProductDetailsQueryCoalescer(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	synchronized void setBackend(BillingBackend backend) {
+		this.backend = backend;
+	}
+
+	synchronized void configure(long windowMillis, int maxBatchSize) {
+		this.windowMillis = Math.max(0, windowMillis);
+		this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE;
+	}
+
+	void query(List<String> productIds, final String type, ProductDetailsResponseListener listener) {
+		Caller caller = new Caller(new ArrayList<>(new LinkedHashSet<>(productIds)), listener);
+		if (caller.remaining == 0) {
+			caller.complete();
+			return;
+		}
+		boolean flushNow = false;
+		synchronized (this) {
+			TypeQueue queue = getQueue(type);
+			for (String productId : caller.productIds) {
+				List<Caller> callers = queue.waiters.get(productId);
+				if (callers == null) {
+					callers = new ArrayList<>();
+					queue.waiters.put(productId, callers);
+				}
+				callers.add(caller);
+				if (!queue.inFlightIds.contains(productId)) {
+					queue.pendingIds.add(productId);
+				}
+			}
+			if (queue.pendingIds.isEmpty() || queue.flushScheduled) {
+				return;
+			}
+			if (windowMillis == 0) {
+				flushNow = true;
+			} else {
+				queue.flushScheduled = true;
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(type);
+					}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (flushNow) {
+			flush(type);
+		}
+	}
+
+	private TypeQueue getQueue(String type) {
+		TypeQueue queue = queues.get(type);
+		if (queue == null) {
+			queue = new TypeQueue();
+			queues.put(type, queue);
+		}
+		return queue;
+	}
+
+	private void flush(final String type) {
+		List<List<String>> batches = new ArrayList<>();
+		BillingBackend backend;
+		synchronized (this) {
+			backend = this.backend;
+			TypeQueue queue = getQueue(type);
+			queue.flushScheduled = false;
+			List<String> batch = new ArrayList<>();
+			for (String productId : queue.pendingIds) {
+				queue.inFlightIds.add(productId);
+				batch.add(productId);
+				if (batch.size() == maxBatchSize) {
+					batches.add(batch);
+					batch = new ArrayList<>();
+				}
+			}
+			if (!batch.isEmpty()) {
+				batches.add(batch);
+			}
+			queue.pendingIds.clear();
+		}
+		for (final List<String> batch : batches) {
+			backend.queryProductDetailsAsync(batch, type, new ProductDetailsResponseListener() {
+				@Override
+				public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
+					onBatchResponse(type, batch, billingResult, productDetailsList);
+				}
+			});
+		}
+	}
+
+	private void onBatchResponse(String type, List<String> batch, BillingResult billingResult, List<ProductDetails> productDetailsList) {
+		boolean ok = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK;
+		HashMap<String, ProductDetails> found = new HashMap<>();
+		if (ok && productDetailsList != null) {
+			for (ProductDetails details : productDetailsList) {
+				found.put(details.getProductId(), details);
+			}
+		}
+		List<Caller> completed = new ArrayList<>();
+		synchronized (this) {
+			TypeQueue queue = getQueue(type);
+			for (String productId : batch) {
+				queue.inFlightIds.remove(productId);
+				List<Caller> callers = queue.waiters.remove(productId);
+				if (callers == null) {
+					continue;
+				}
+				for (Caller caller : callers) {
+					if (!ok) {
+						if (caller.error == null) {
+							caller.error = billingResult;
+						}
+					} else if (found.containsKey(productId)) {
+						caller.results.put(productId, found.get(productId));
+					}
+					caller.remaining -= 1;
+					if (caller.remaining == 0) {
+						completed.add(caller);
+					}
+				}
+			}
+		}
+		for (Caller caller : completed) {
+			caller.complete();
+		}
+	}
+
+	private static BillingResult okResult() {
+		return BillingResult.newBuilder().setResponseCode(BillingClient.BillingResponseCode.OK).build();
+	}
+}
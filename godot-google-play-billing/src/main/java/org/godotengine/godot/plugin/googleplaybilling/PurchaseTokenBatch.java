@@ -0,0 +1,169 @@
+/*************************************************************************/
+/*  PurchaseTokenBatch.java                                              */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.ExponentialBackoff;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Runs acknowledge/consume over a list of purchase tokens with a bounded number
+// of calls in flight, retrying transient failures, and reports every outcome in
+// a single dictionary once the last token is done.
+class PurchaseTokenBatch {
+	static final int DEFAULT_CONCURRENCY = 4;
+	static final int MAX_ATTEMPTS = 3;
+	private static final long BACKOFF_BASE_MILLIS = 500;
+	private static final long BACKOFF_MAX_MILLIS = 8000;
+
+	interface TokenAction {
+		void run(String purchaseToken, Callback callback);
+	}
+
+	interface Callback {
+		void onResult(BillingResult billingResult);
+	}
+
+	interface Completion {
+		void onBatchCompleted(Dictionary result);
+	}
+
+	private final String[] tokens;
+	private final int concurrency;
+	private final ScheduledExecutorService scheduler;
+	private final TokenAction action;
+	private final Completion completion;
+	private final ExponentialBackoff backoff = new ExponentialBackoff(BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS);
+	private final Object[] results;
+	private final long startNanos = System.nanoTime();
+	private int nextIndex;
+	private int finished;
+	private int succeeded;
+
+	PurchaseTokenBatch(String[] tokens, int concurrency, ScheduledExecutorService scheduler, TokenAction action, Completion completion) {
+		this.tokens = tokens;
+		this.concurrency = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+		this.scheduler = scheduler;
+		this.action = action;
+		this.completion = completion;
+		this.results = new Object[tokens.length];
+	}
+
+	void start() {
+		if (tokens.length == 0) {
+			completion.onBatchCompleted(buildResult());
+			return;
+		}
+		int initial = Math.min(concurrency, tokens.length);
+		for (int i = 0; i < initial; i++) {
+			startNext();
+		}
+	}
+
+	private void startNext() {
+		int index;
+		synchronized (this) {
+			if (nextIndex >= tokens.length) {
+				return;
+			}
+			index = nextIndex;
+			nextIndex += 1;
+		}
+		attempt(index, 1, System.nanoTime());
+	}
+
+	private void attempt(final int index, final int attempt, final long tokenStartNanos) {
+		action.run(tokens[index], new Callback() {
+			@Override
+			public void onResult(BillingResult billingResult) {
+				if (isTransient(billingResult.getResponseCode()) && attempt < MAX_ATTEMPTS) {
+					scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							attempt(index, attempt + 1, tokenStartNanos);
+						}
+					}, backoff.delayMillis(attempt - 1), TimeUnit.MILLISECONDS);
+					return;
+				}
+				onTokenFinished(index, attempt, tokenStartNanos, billingResult);
+			}
+		});
+	}
+
+	private void onTokenFinished(int index, int attempts, long tokenStartNanos, BillingResult billingResult) {
+		Dictionary tokenResult = new Dictionary();
+		tokenResult.put("purchase_token", tokens[index]);
+		boolean ok = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK;
+		tokenResult.put("status", ok ? 0 : 1); // OK = 0, FAILED = 1
+		if (!ok) {
+			tokenResult.put("response_code", billingResult.getResponseCode());
+			tokenResult.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(billingResult.getResponseCode()));
+			tokenResult.put("debug_message", billingResult.getDebugMessage());
+		}
+		tokenResult.put("attempts", attempts);
+		tokenResult.put("latency_ms", (System.nanoTime() - tokenStartNanos) / 1000000L);
+		boolean done;
+		synchronized (this) {
+			results[index] = tokenResult;
+			finished += 1;
+			if (ok) {
+				succeeded += 1;
+			}
+			done = finished == tokens.length;
+		}
+		if (done) {
+			completion.onBatchCompleted(buildResult());
+		} else {
+			startNext();
+		}
+	}
+
+	private synchronized Dictionary buildResult() {
+		Dictionary result = new Dictionary();
+		result.put("status", succeeded == tokens.length ? 0 : 1); // OK = 0, FAILED = 1 if any token failed
+		result.put("succeeded", succeeded);
+		result.put("failed", tokens.length - succeeded);
+		result.put("results", results);
+		result.put("latency_ms", (System.nanoTime() - startNanos) / 1000000L);
+		return result;
+	}
+
+	static boolean isTransient(int responseCode) {
+		return responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED
+				|| responseCode == BillingClient.BillingResponseCode.SERVICE_TIMEOUT
+				|| responseCode == BillingClient.BillingResponseCode.NETWORK_ERROR;
+	}
+}
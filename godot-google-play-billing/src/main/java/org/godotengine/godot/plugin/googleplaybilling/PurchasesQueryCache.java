@@ -0,0 +1,163 @@
+/*************************************************************************/
+/*  PurchasesQueryCache.java                                             */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+
+import org.godotengine.godot.Dictionary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Answers queryPurchases from the last result while it is younger than the staleness
+// window, and lets identical queries share the one in flight. Anything that changes
+// purchases (updates, acknowledge, consume) invalidates it.
+class PurchasesQueryCache {
+	static final long DEFAULT_STALENESS_MILLIS = 10000;
+
+	interface Loader {
+		void load(String type, PurchasesResponseListener listener);
+	}
+
+	private static class Entry {
+		final BillingResult billingResult;
+		final List<Purchase> purchases;
+		final long fetchedAt;
+
+		Entry(BillingResult billingResult, List<Purchase> purchases, long fetchedAt) {
+			this.billingResult = billingResult;
+			this.purchases = purchases;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private static class InFlight {
+		final int generation;
+		final List<PurchasesResponseListener> waiters = new ArrayList<>();
+
+		InFlight(int generation) {
+			this.generation = generation;
+		}
+	}
+
+	private final Loader loader;
+	private final HashMap<String, Entry> entries = new HashMap<>();
+	private final HashMap<String, InFlight> inFlight = new HashMap<>();
+	private long stalenessMillis = DEFAULT_STALENESS_MILLIS;
+	// Bumped on invalidation; queries started before it are not cached, nor joined.
+	private int generation;
+	// Answered from the cache, joined a query in flight, or reached the loader.
+	private long hits;
+	private long joined;
+	private long misses;
+
+	PurchasesQueryCache(Loader loader) {
+		this.loader = loader;
+	}
+
+	// 0 turns caching off, identical queries in flight are still shared.
+	synchronized void setStalenessMillis(long stalenessMillis) {
+		this.stalenessMillis = Math.max(0, stalenessMillis);
+		entries.clear();
+	}
+
+	synchronized void invalidate() {
+		generation += 1;
+		entries.clear();
+	}
+
+	void query(final String type, PurchasesResponseListener listener) {
+		Entry cached;
+		final InFlight query;
+		synchronized (this) {
+			cached = entries.get(type);
+			if (cached != null && now() - cached.fetchedAt >= stalenessMillis) {
+				entries.remove(type);
+				cached = null;
+			}
+			if (cached == null) {
+				InFlight current = inFlight.get(type);
+				if (current != null && current.generation == generation) {
+					current.waiters.add(listener);
+					joined += 1;
+					return;
+				}
+				misses += 1;
+				query = new InFlight(generation);
+				query.waiters.add(listener);
+				inFlight.put(type, query);
+			} else {
+				hits += 1;
+				query = null;
+			}
+		}
+		if (cached != null) {
+			listener.onQueryPurchasesResponse(cached.billingResult, cached.purchases);
+			return;
+		}
+		loader.load(type, new PurchasesResponseListener() {
+			@Override
+			public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+				List<PurchasesResponseListener> waiters;
+				synchronized (PurchasesQueryCache.this) {
+					if (inFlight.get(type) == query) {
+						inFlight.remove(type);
+					}
+					if (query.generation == generation && stalenessMillis > 0
+							&& billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+						entries.put(type, new Entry(billingResult, purchases, now()));
+					}
+					waiters = new ArrayList<>(query.waiters);
+				}
+				for (PurchasesResponseListener waiter : waiters) {
+					waiter.onQueryPurchasesResponse(billingResult, purchases);
+				}
+			}
+		});
+	}
+
+	synchronized Dictionary getStats() {
+		Dictionary stats = new Dictionary();
+		stats.put("window_ms", stalenessMillis);
+		stats.put("hits", hits);
+		stats.put("joined", joined);
+		stats.put("misses", misses);
+		return stats;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
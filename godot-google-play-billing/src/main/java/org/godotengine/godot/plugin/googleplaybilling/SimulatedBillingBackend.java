@@ -0,0 +1,512 @@
+/*************************************************************************/
+/*  SimulatedBillingBackend.java                                         */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// In-process stand-in for Google Play, driven by a script:
+//   products:               product details in the JSON format Play returns (String or Dictionary)
+//   purchases:              owned purchases in the JSON format Play returns (String or Dictionary)
+//   latency:                {median_ms, p99_ms} of a log-normal distribution, for every operation
+//   operation_latency:      {operation: {median_ms, p99_ms}} overriding latency
+//   failures:               {operation: {response code name: probability}}
+//   disconnect_interval_ms: mean time between spontaneous disconnects, 0 never disconnects
+//   package_name, seed
+// Operations are startConnection, queryProductDetails, queryPurchases, launchBillingFlow,
+// purchase (the user going through the purchase flow), acknowledgePurchase and consumePurchase.
+// Callbacks run on the simulator's own thread.
+public class SimulatedBillingBackend implements BillingBackend {
+	// Standard normal quantile of the 99th percentile.
+	private static final double Z_99 = 2.3263;
+
+	private final PurchasesUpdatedListener purchasesUpdatedListener;
+	private final ScheduledExecutorService executor;
+	private final Random random;
+	private final String packageName;
+	private final LinkedHashMap<String, ProductDetails> catalog = new LinkedHashMap<>();
+	private final LinkedHashMap<String, JSONObject> purchases = new LinkedHashMap<>();
+	private final Latency defaultLatency;
+	private final HashMap<String, Latency> operationLatency = new HashMap<>();
+	private final HashMap<String, LinkedHashMap<Integer, Double>> failures = new HashMap<>();
+	private final long disconnectIntervalMillis;
+	private int connectionState = BillingClient.ConnectionState.DISCONNECTED;
+	// Bumped on every connection change, callbacks of older connections fail with SERVICE_DISCONNECTED.
+	private int generation;
+	private BillingClientStateListener stateListener;
+	private ScheduledFuture<?> nextDisconnect;
+	private long orderCounter;
+
+	private static class Latency {
+		final long medianMillis;
+		final double sigma;
+
+		Latency(long medianMillis, long p99Millis) {
+			this.medianMillis = Math.max(0, medianMillis);
+			this.sigma = p99Millis > medianMillis && medianMillis > 0 ? Math.log((double)p99Millis / medianMillis) / Z_99 : 0;
+		}
+
+		long sample(Random random) {
+			if (medianMillis == 0 || sigma == 0) {
+				return medianMillis;
+			}
+			return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+		}
+	}
+
+	private interface Completion {
+		void run(BillingResult billingResult);
+	}
+
+	// Throws IllegalArgumentException if the script can't be parsed.
+	public SimulatedBillingBackend(PurchasesUpdatedListener purchasesUpdatedListener, Map<String, Object> script) {
+		this.purchasesUpdatedListener = purchasesUpdatedListener;
+		Object seed = script.get("seed");
+		random = seed instanceof Number ? new Random(((Number)seed).longValue()) : new Random();
+		Object name = script.get("package_name");
+		packageName = name instanceof String ? (String)name : "org.godotengine.simulated";
+		defaultLatency = parseLatency(script.get("latency"));
+		for (Map.Entry<String, Object> e : asMap(script.get("operation_latency")).entrySet()) {
+			operationLatency.put(e.getKey(), parseLatency(e.getValue()));
+		}
+		for (Map.Entry<String, Object> e : asMap(script.get("failures")).entrySet()) {
+			LinkedHashMap<Integer, Double> codes = new LinkedHashMap<>();
+			for (Map.Entry<String, Object> code : asMap(e.getValue()).entrySet()) {
+				codes.put(GooglePlayBillingUtils.responseCodeHintToCode(code.getKey()), asDouble(code.getValue()));
+			}
+			failures.put(e.getKey(), codes);
+		}
+		disconnectIntervalMillis = asLong(script.get("disconnect_interval_ms"), 0);
+		try {
+			for (Object product : asList(script.get("products"))) {
+				ProductDetails details = newProductDetails(asJson(product));
+				catalog.put(details.getProductId(), details);
+			}
+			for (Object purchase : asList(script.get("purchases"))) {
+				JSONObject json = new JSONObject(asJson(purchase));
+				if (!json.has("purchaseToken")) {
+					json.put("purchaseToken", newPurchaseToken());
+				}
+				purchases.put(json.getString("purchaseToken"), json);
+			}
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Invalid simulator script: " + e.getMessage(), e);
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BillingSimulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// Stops the simulator thread, pending callbacks are dropped.
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public synchronized void startConnection(final BillingClientStateListener listener) {
+		if (connectionState == BillingClient.ConnectionState.CONNECTED) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					listener.onBillingSetupFinished(result(BillingClient.BillingResponseCode.OK));
+				}
+			});
+			return;
+		}
+		stateListener = listener;
+		connectionState = BillingClient.ConnectionState.CONNECTING;
+		final int connection = ++generation;
+		final int responseCode = injectedResponseCode("startConnection");
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedBillingBackend.this) {
+					if (generation != connection) {
+						return;
+					}
+					if (responseCode == BillingClient.BillingResponseCode.OK) {
+						connectionState = BillingClient.ConnectionState.CONNECTED;
+						scheduleDisconnect();
+					} else {
+						connectionState = BillingClient.ConnectionState.DISCONNECTED;
+					}
+				}
+				listener.onBillingSetupFinished(result(responseCode));
+			}
+		}, sampleLatency("startConnection"), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void endConnection() {
+		generation += 1;
+		connectionState = BillingClient.ConnectionState.CLOSED;
+		stateListener = null;
+		if (nextDisconnect != null) {
+			nextDisconnect.cancel(false);
+			nextDisconnect = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean isReady() {
+		return connectionState == BillingClient.ConnectionState.CONNECTED;
+	}
+
+	@Override
+	public synchronized int getConnectionState() {
+		return connectionState;
+	}
+
+	@Override
+	public synchronized BillingResult isFeatureSupported(String feature) {
+		if (!isReady()) {
+			return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+		}
+		return result(BillingClient.BillingResponseCode.OK);
+	}
+
+	@Override
+	public void queryProductDetailsAsync(final List<String> productIds, final String productType, final ProductDetailsResponseListener listener) {
+		complete("queryProductDetails", new Completion() {
+			@Override
+			public void run(BillingResult billingResult) {
+				List<ProductDetails> productDetailsList = new ArrayList<>();
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					synchronized (SimulatedBillingBackend.this) {
+						for (String productId : productIds) {
+							ProductDetails details = catalog.get(productId);
+							if (details != null && details.getProductType().equals(productType)) {
+								productDetailsList.add(details);
+							}
+						}
+					}
+				}
+				listener.onProductDetailsResponse(billingResult, productDetailsList);
+			}
+		});
+	}
+
+	@Override
+	public void queryPurchasesAsync(final String productType, final PurchasesResponseListener listener) {
+		complete("queryPurchases", new Completion() {
+			@Override
+			public void run(BillingResult billingResult) {
+				List<Purchase> purchaseList = new ArrayList<>();
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					synchronized (SimulatedBillingBackend.this) {
+						for (JSONObject purchase : purchases.values()) {
+							if (productType.equals(getProductType(purchase.optString("productId")))) {
+								purchaseList.add(newPurchase(purchase));
+							}
+						}
+					}
+				}
+				listener.onQueryPurchasesResponse(billingResult, purchaseList);
+			}
+		});
+	}
+
+	// The params are opaque, so upgrades and obfuscated ids are not simulated.
+	@Override
+	public synchronized BillingResult launchBillingFlow(Activity activity, BillingFlowParams params, final ProductDetails productDetails) {
+		if (!isReady()) {
+			return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+		}
+		int responseCode = injectedResponseCode("launchBillingFlow");
+		if (responseCode != BillingClient.BillingResponseCode.OK) {
+			return result(responseCode);
+		}
+		final String productId = productDetails.getProductId();
+		if (!catalog.containsKey(productId)) {
+			return result(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE);
+		}
+		if (isOwned(productId)) {
+			return result(BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED);
+		}
+		complete("purchase", new Completion() {
+			@Override
+			public void run(BillingResult billingResult) {
+				if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+					purchasesUpdatedListener.onPurchasesUpdated(billingResult, null);
+					return;
+				}
+				Purchase purchase = recordPurchase(productId);
+				purchasesUpdatedListener.onPurchasesUpdated(billingResult, Collections.singletonList(purchase));
+			}
+		});
+		return result(BillingClient.BillingResponseCode.OK);
+	}
+
+	@Override
+	public void acknowledgePurchase(final String purchaseToken, final AcknowledgePurchaseResponseListener listener) {
+		complete("acknowledgePurchase", new Completion() {
+			@Override
+			public void run(BillingResult billingResult) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					synchronized (SimulatedBillingBackend.this) {
+						JSONObject purchase = purchases.get(purchaseToken);
+						if (purchase == null) {
+							billingResult = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
+						} else {
+							put(purchase, "acknowledged", true);
+						}
+					}
+				}
+				listener.onAcknowledgePurchaseResponse(billingResult);
+			}
+		});
+	}
+
+	@Override
+	public void consumeAsync(final String purchaseToken, final ConsumeResponseListener listener) {
+		complete("consumePurchase", new Completion() {
+			@Override
+			public void run(BillingResult billingResult) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					synchronized (SimulatedBillingBackend.this) {
+						if (purchases.remove(purchaseToken) == null) {
+							billingResult = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED);
+						}
+					}
+				}
+				listener.onConsumeResponse(billingResult, purchaseToken);
+			}
+		});
+	}
+
+	// Runs completion after the operation's latency with OK, an injected failure, or
+	// SERVICE_DISCONNECTED if the connection is lost meanwhile.
+	private synchronized void complete(String operation, final Completion completion) {
+		final int connection = generation;
+		final boolean connected = isReady();
+		final int responseCode = connected ? injectedResponseCode(operation) : BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+		long delay = connected ? sampleLatency(operation) : 0;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				int code = responseCode;
+				synchronized (SimulatedBillingBackend.this) {
+					if (generation != connection) {
+						code = BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+					}
+				}
+				completion.run(result(code));
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void scheduleDisconnect() {
+		if (disconnectIntervalMillis <= 0) {
+			return;
+		}
+		final int connection = generation;
+		// Exponentially distributed, so disconnects arrive as a Poisson process.
+		long delay = (long)(-disconnectIntervalMillis * Math.log(1.0 - random.nextDouble()));
+		nextDisconnect = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				BillingClientStateListener listener;
+				synchronized (SimulatedBillingBackend.this) {
+					if (generation != connection || connectionState != BillingClient.ConnectionState.CONNECTED) {
+						return;
+					}
+					generation += 1;
+					connectionState = BillingClient.ConnectionState.DISCONNECTED;
+					nextDisconnect = null;
+					listener = stateListener;
+				}
+				if (listener != null) {
+					listener.onBillingServiceDisconnected();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private int injectedResponseCode(String operation) {
+		LinkedHashMap<Integer, Double> codes = failures.get(operation);
+		if (codes == null) {
+			return BillingClient.BillingResponseCode.OK;
+		}
+		double roll = random.nextDouble();
+		for (Map.Entry<Integer, Double> e : codes.entrySet()) {
+			roll -= e.getValue();
+			if (roll < 0) {
+				return e.getKey();
+			}
+		}
+		return BillingClient.BillingResponseCode.OK;
+	}
+
+	private long sampleLatency(String operation) {
+		Latency latency = operationLatency.get(operation);
+		return (latency != null ? latency : defaultLatency).sample(random);
+	}
+
+	private String getProductType(String productId) {
+		ProductDetails details = catalog.get(productId);
+		return details != null ? details.getProductType() : BillingClient.ProductType.INAPP;
+	}
+
+	private boolean isOwned(String productId) {
+		for (JSONObject purchase : purchases.values()) {
+			if (productId.equals(purchase.optString("productId"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized Purchase recordPurchase(String productId) {
+		orderCounter += 1;
+		JSONObject purchase = new JSONObject();
+		put(purchase, "orderId", "GPA.SIM-" + orderCounter);
+		put(purchase, "packageName", packageName);
+		put(purchase, "productId", productId);
+		put(purchase, "purchaseTime", System.currentTimeMillis());
+		put(purchase, "purchaseState", 0);
+		put(purchase, "purchaseToken", newPurchaseToken());
+		put(purchase, "quantity", 1);
+		put(purchase, "acknowledged", false);
+		put(purchase, "autoRenewing", BillingClient.ProductType.SUBS.equals(getProductType(productId)));
+		purchases.put(purchase.optString("purchaseToken"), purchase);
+		return newPurchase(purchase);
+	}
+
+	private String newPurchaseToken() {
+		return "simulated." + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+	}
+
+	private static BillingResult result(int responseCode) {
+		return BillingResult.newBuilder()
+				.setResponseCode(responseCode)
+				.setDebugMessage(responseCode == BillingClient.BillingResponseCode.OK ? "" : "Simulated " + GooglePlayBillingUtils.responseCodeHint(responseCode))
+				.build();
+	}
+
+	private static Purchase newPurchase(JSONObject purchase) {
+		try {
+			return new Purchase(purchase.toString(), "");
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void put(JSONObject object, String key, Object value) {
+		try {
+			object.put(key, value);
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// The constructor is package-private, it's what the library uses for the JSON Play returns.
+	private static ProductDetails newProductDetails(String json) {
+		try {
+			Constructor<ProductDetails> constructor = ProductDetails.class.getDeclaredConstructor(String.class);
+			constructor.setAccessible(true);
+			return constructor.newInstance(json);
+		} catch (InvocationTargetException e) {
+			throw new IllegalArgumentException("Invalid simulated product: " + e.getCause().getMessage(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Unable to create simulated product details", e);
+		}
+	}
+
+	private static Latency parseLatency(Object value) {
+		Map<String, Object> latency = asMap(value);
+		long median = asLong(latency.get("median_ms"), 0);
+		return new Latency(median, asLong(latency.get("p99_ms"), median));
+	}
+
+	private static String asJson(Object value) {
+		if (value instanceof Map) {
+			return new JSONObject((Map<?, ?>)value).toString();
+		}
+		return String.valueOf(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asMap(Object value) {
+		return value instanceof Map ? (Map<String, Object>)value : Collections.<String, Object>emptyMap();
+	}
+
+	private static List<?> asList(Object value) {
+		if (value instanceof Object[]) {
+			return Arrays.asList((Object[])value);
+		}
+		return value instanceof List ? (List<?>)value : Collections.emptyList();
+	}
+
+	private static long asLong(Object value, long defaultValue) {
+		return value instanceof Number ? ((Number)value).longValue() : defaultValue;
+	}
+
+	private static double asDouble(Object value) {
+		return value instanceof Number ? ((Number)value).doubleValue() : 0;
+	}
+}
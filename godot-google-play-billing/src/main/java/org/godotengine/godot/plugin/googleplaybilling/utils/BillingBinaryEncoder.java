@@ -0,0 +1,167 @@
+/*************************************************************************/
+/*  BillingBinaryEncoder.java                                            */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.Purchase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Compact alternative to the nested Dictionaries: the whole result is encoded
+// into one byte[] so it crosses JNI as a single PackedByteArray copy.
+//
+// Layout (big endian), version 1:
+//   header   : 'G' 'P' 'B' u8 version, u8 kind (1 = products, 2 = purchases), i32 count
+//   string   : i32 byte length (-1 for null), UTF-8 bytes
+//   product  : id, name, title, description, type,
+//              u8 has one time offer [formatted, i64 micros, currency],
+//              i32 offer count (-1 if not a subscription), offers
+//   offer    : base plan id, offer id, offer token, i32 tag count, tags, i32 phase count, phases
+//   phase    : i32 billing cycle count, period, formatted, i64 micros, currency, i32 recurrence mode
+//   purchase : order id, package name, i32 state, i64 time, token, i32 quantity,
+//              i32 product count, products, u8 acknowledged, u8 auto renewing, original json, signature
+public class BillingBinaryEncoder {
+	public static final int FORMAT_VERSION = 1;
+	public static final int KIND_PRODUCT_DETAILS = 1;
+	public static final int KIND_PURCHASES = 2;
+
+	public static byte[] encodeProductDetailsList(List<ProductDetails> productDetailsList) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * (productDetailsList.size() + 1));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeHeader(out, KIND_PRODUCT_DETAILS, productDetailsList.size());
+			for (ProductDetails details : productDetailsList) {
+				writeProductDetails(out, details);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static byte[] encodePurchaseList(List<Purchase> purchases) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512 * (purchases.size() + 1));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeHeader(out, KIND_PURCHASES, purchases.size());
+			for (Purchase purchase : purchases) {
+				writePurchase(out, purchase);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeHeader(DataOutputStream out, int kind, int count) throws IOException {
+		out.writeByte('G');
+		out.writeByte('P');
+		out.writeByte('B');
+		out.writeByte(FORMAT_VERSION);
+		out.writeByte(kind);
+		out.writeInt(count);
+	}
+
+	private static void writeProductDetails(DataOutputStream out, ProductDetails details) throws IOException {
+		writeString(out, details.getProductId());
+		writeString(out, details.getName());
+		writeString(out, details.getTitle());
+		writeString(out, details.getDescription());
+		writeString(out, details.getProductType());
+		ProductDetails.OneTimePurchaseOfferDetails otpoDetails = details.getOneTimePurchaseOfferDetails();
+		out.writeBoolean(otpoDetails != null);
+		if (otpoDetails != null) {
+			writeString(out, otpoDetails.getFormattedPrice());
+			out.writeLong(otpoDetails.getPriceAmountMicros());
+			writeString(out, otpoDetails.getPriceCurrencyCode());
+		}
+		List<ProductDetails.SubscriptionOfferDetails> offers = details.getSubscriptionOfferDetails();
+		if (offers == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(offers.size());
+		for (ProductDetails.SubscriptionOfferDetails offer : offers) {
+			writeString(out, offer.getBasePlanId());
+			writeString(out, offer.getOfferId());
+			writeString(out, offer.getOfferToken());
+			writeStringList(out, offer.getOfferTags());
+			List<ProductDetails.PricingPhase> phases = offer.getPricingPhases().getPricingPhaseList();
+			out.writeInt(phases.size());
+			for (ProductDetails.PricingPhase phase : phases) {
+				out.writeInt(phase.getBillingCycleCount());
+				writeString(out, phase.getBillingPeriod());
+				writeString(out, phase.getFormattedPrice());
+				out.writeLong(phase.getPriceAmountMicros());
+				writeString(out, phase.getPriceCurrencyCode());
+				out.writeInt(phase.getRecurrenceMode());
+			}
+		}
+	}
+
+	private static void writePurchase(DataOutputStream out, Purchase purchase) throws IOException {
+		writeString(out, purchase.getOrderId());
+		writeString(out, purchase.getPackageName());
+		out.writeInt(purchase.getPurchaseState());
+		out.writeLong(purchase.getPurchaseTime());
+		writeString(out, purchase.getPurchaseToken());
+		out.writeInt(purchase.getQuantity());
+		writeStringList(out, purchase.getProducts());
+		out.writeBoolean(purchase.isAcknowledged());
+		out.writeBoolean(purchase.isAutoRenewing());
+		writeString(out, purchase.getOriginalJson());
+		writeString(out, purchase.getSignature());
+	}
+
+	private static void writeStringList(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			writeString(out, s);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+}
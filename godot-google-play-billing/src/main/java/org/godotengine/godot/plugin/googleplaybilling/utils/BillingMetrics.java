@@ -0,0 +1,170 @@
+/*************************************************************************/
+/*  BillingMetrics.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histograms and response code counts per billing operation, plus
+// connection uptime. Recording is a couple of atomic increments, the
+// dictionaries are only built when someone asks for them.
+public class BillingMetrics {
+	// Upper bounds of the latency buckets in milliseconds, the last bucket holds everything slower.
+	private static final long[] BUCKET_BOUNDS_MS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private static final class OperationStats {
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalMillis = new AtomicLong();
+		final AtomicLong maxMillis = new AtomicLong();
+		final ConcurrentHashMap<Integer, AtomicLong> responseCodes = new ConcurrentHashMap<>();
+
+		void record(long millis, int responseCode) {
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_MS.length && millis > BUCKET_BOUNDS_MS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			totalMillis.addAndGet(millis);
+			long max;
+			while (millis > (max = maxMillis.get()) && !maxMillis.compareAndSet(max, millis)) {
+				// retry
+			}
+			AtomicLong codeCount = responseCodes.get(responseCode);
+			if (codeCount == null) {
+				AtomicLong created = new AtomicLong();
+				codeCount = responseCodes.putIfAbsent(responseCode, created);
+				if (codeCount == null) {
+					codeCount = created;
+				}
+			}
+			codeCount.incrementAndGet();
+		}
+
+		Dictionary toDictionary() {
+			Dictionary dictionary = new Dictionary();
+			long n = count.get();
+			dictionary.put("count", n);
+			dictionary.put("total_ms", totalMillis.get());
+			dictionary.put("mean_ms", n == 0 ? 0 : totalMillis.get() / n);
+			dictionary.put("max_ms", maxMillis.get());
+			Dictionary histogram = new Dictionary();
+			for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+				histogram.put("le_" + BUCKET_BOUNDS_MS[i] + "_ms", buckets.get(i));
+			}
+			histogram.put("gt_" + BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1] + "_ms", buckets.get(BUCKET_BOUNDS_MS.length));
+			dictionary.put("latency_histogram", histogram);
+			Dictionary codes = new Dictionary();
+			for (Map.Entry<Integer, AtomicLong> e : responseCodes.entrySet()) {
+				codes.put(responseCodeKey(e.getKey()), e.getValue().get());
+			}
+			dictionary.put("response_codes", codes);
+			return dictionary;
+		}
+	}
+
+	// Known codes by name, others by number so they don't share the "unsupported" hint.
+	private static String responseCodeKey(int responseCode) {
+		String hint = GooglePlayBillingUtils.responseCodeHint(responseCode);
+		return GooglePlayBillingUtils.responseCodeHintToCode(hint) == responseCode ? hint : String.valueOf(responseCode);
+	}
+
+	private final ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<>();
+	private final long createdAtNanos = System.nanoTime();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong reconnectAttempts = new AtomicLong();
+	private long connectedSinceNanos = -1;
+	private long connectedTotalNanos;
+
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	public void record(String operation, long startNanos, int responseCode) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			OperationStats created = new OperationStats();
+			stats = operations.putIfAbsent(operation, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		stats.record((System.nanoTime() - startNanos) / 1000000L, responseCode);
+	}
+
+	public synchronized void onConnected() {
+		connects.incrementAndGet();
+		if (connectedSinceNanos < 0) {
+			connectedSinceNanos = System.nanoTime();
+		}
+	}
+
+	public synchronized void onDisconnected() {
+		disconnects.incrementAndGet();
+		if (connectedSinceNanos >= 0) {
+			connectedTotalNanos += System.nanoTime() - connectedSinceNanos;
+			connectedSinceNanos = -1;
+		}
+	}
+
+	public void onReconnectAttempt() {
+		reconnectAttempts.incrementAndGet();
+	}
+
+	public Dictionary toDictionary() {
+		Dictionary dictionary = new Dictionary();
+		Dictionary operationsDict = new Dictionary();
+		for (Map.Entry<String, OperationStats> e : operations.entrySet()) {
+			operationsDict.put(e.getKey(), e.getValue().toDictionary());
+		}
+		dictionary.put("operations", operationsDict);
+		Dictionary connection = new Dictionary();
+		long now = System.nanoTime();
+		synchronized (this) {
+			long connected = connectedTotalNanos + (connectedSinceNanos >= 0 ? now - connectedSinceNanos : 0);
+			connection.put("connected", connectedSinceNanos >= 0);
+			connection.put("connected_ms", connected / 1000000L);
+			connection.put("current_uptime_ms", connectedSinceNanos >= 0 ? (now - connectedSinceNanos) / 1000000L : 0);
+		}
+		connection.put("since_start_ms", (now - createdAtNanos) / 1000000L);
+		connection.put("connects", connects.get());
+		connection.put("disconnects", disconnects.get());
+		connection.put("reconnect_attempts", reconnectAttempts.get());
+		dictionary.put("connection", connection);
+		return dictionary;
+	}
+}
@@ -0,0 +1,253 @@
+/*************************************************************************/
+/*  EntitlementIndex.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// What the player owns, keyed by product id and kept up to date from purchase queries,
+// updates and acknowledge/consume results. Writers replace the whole map, so lookups
+// are a plain hash read without locking.
+public class EntitlementIndex {
+	private static final int MISSED_INAPP = 1;
+	private static final int MISSED_SUBS = 2;
+
+	public static final class Entitlement {
+		public final String productId;
+		public final String productType;
+		public final String purchaseToken;
+		public final int purchaseState;
+		public final boolean acknowledged;
+		public final boolean autoRenewing;
+		public final long purchaseTime;
+		public final int quantity;
+		// Product types queried without this purchase while its own type was unknown.
+		final int missedQueries;
+
+		Entitlement(String productId, String productType, Purchase purchase, boolean acknowledged) {
+			this.productId = productId;
+			this.productType = productType;
+			this.purchaseToken = purchase.getPurchaseToken();
+			this.purchaseState = purchase.getPurchaseState();
+			this.acknowledged = acknowledged;
+			this.autoRenewing = purchase.isAutoRenewing();
+			this.purchaseTime = purchase.getPurchaseTime();
+			this.quantity = purchase.getQuantity();
+			this.missedQueries = 0;
+		}
+
+		private Entitlement(Entitlement e, String productType, boolean acknowledged, int missedQueries) {
+			this.productId = e.productId;
+			this.productType = productType;
+			this.purchaseToken = e.purchaseToken;
+			this.purchaseState = e.purchaseState;
+			this.acknowledged = acknowledged;
+			this.autoRenewing = e.autoRenewing;
+			this.purchaseTime = e.purchaseTime;
+			this.quantity = e.quantity;
+			this.missedQueries = missedQueries;
+		}
+
+		public boolean isOwned() {
+			return purchaseState == Purchase.PurchaseState.PURCHASED;
+		}
+
+		boolean sameState(Entitlement e) {
+			return purchaseToken.equals(e.purchaseToken) && purchaseState == e.purchaseState
+					&& acknowledged == e.acknowledged && autoRenewing == e.autoRenewing
+					&& quantity == e.quantity;
+		}
+
+		public Dictionary toDictionary() {
+			Dictionary dictionary = new Dictionary();
+			dictionary.put("product_id", productId);
+			dictionary.put("product_type", productType); // null until the product was queried
+			dictionary.put("purchase_token", purchaseToken);
+			dictionary.put("purchase_state", purchaseState);
+			dictionary.put("is_owned", isOwned());
+			dictionary.put("is_pending", purchaseState == Purchase.PurchaseState.PENDING);
+			dictionary.put("is_acknowledged", acknowledged);
+			dictionary.put("is_auto_renewing", autoRenewing);
+			dictionary.put("purchase_time", purchaseTime);
+			dictionary.put("quantity", quantity);
+			return dictionary;
+		}
+	}
+
+	private final PurchaseSnapshot.TypeResolver typeResolver;
+	private volatile Map<String, Entitlement> byProduct = Collections.emptyMap();
+
+	public EntitlementIndex(PurchaseSnapshot.TypeResolver typeResolver) {
+		this.typeResolver = typeResolver;
+	}
+
+	// True if productId is purchased, pending purchases don't count.
+	public boolean hasEntitlement(String productId) {
+		Entitlement entitlement = byProduct.get(productId);
+		return entitlement != null && entitlement.isOwned();
+	}
+
+	public Entitlement get(String productId) {
+		return byProduct.get(productId);
+	}
+
+	public Dictionary toDictionary() {
+		Dictionary dictionary = new Dictionary();
+		for (Entitlement entitlement : byProduct.values()) {
+			dictionary.put(entitlement.productId, entitlement.toDictionary());
+		}
+		return dictionary;
+	}
+
+	// A query returns every purchase of its type, so products of that type missing from it are dropped.
+	// Entries added by updates before their type was known get it resolved here; if it still isn't
+	// known, they are dropped once both types were queried without them.
+	// These methods return true if the index changed.
+	public synchronized boolean applyQuery(String type, List<Purchase> purchases) {
+		HashSet<String> seen = new HashSet<>();
+		for (Purchase purchase : purchases) {
+			seen.addAll(purchase.getProducts());
+		}
+		HashMap<String, Entitlement> next = new HashMap<>(byProduct);
+		Iterator<Map.Entry<String, Entitlement>> it = next.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entitlement> e = it.next();
+			Entitlement entitlement = e.getValue();
+			if (seen.contains(entitlement.productId)) {
+				it.remove();
+				continue;
+			}
+			String entitlementType = entitlement.productType;
+			if (entitlementType == null) {
+				entitlementType = typeResolver.getProductType(entitlement.productId);
+			}
+			if (type.equals(entitlementType)) {
+				it.remove();
+			} else if (entitlementType != null) {
+				if (entitlement.productType == null) {
+					e.setValue(new Entitlement(entitlement, entitlementType, entitlement.acknowledged, 0));
+				}
+			} else {
+				int missed = entitlement.missedQueries | missedBit(type);
+				if (missed == (MISSED_INAPP | MISSED_SUBS)) {
+					it.remove();
+				} else {
+					e.setValue(new Entitlement(entitlement, null, entitlement.acknowledged, missed));
+				}
+			}
+		}
+		for (Purchase purchase : purchases) {
+			for (String productId : purchase.getProducts()) {
+				put(next, new Entitlement(productId, type, purchase, purchase.isAcknowledged()));
+			}
+		}
+		return publish(next);
+	}
+
+	// Purchase updates only carry the purchases that changed, nothing is dropped.
+	public synchronized boolean applyUpdate(List<Purchase> purchases) {
+		HashMap<String, Entitlement> next = new HashMap<>(byProduct);
+		for (Purchase purchase : purchases) {
+			for (String productId : purchase.getProducts()) {
+				Entitlement known = next.get(productId);
+				String type = known != null && known.productType != null ? known.productType : typeResolver.getProductType(productId);
+				put(next, new Entitlement(productId, type, purchase, purchase.isAcknowledged()));
+			}
+		}
+		return publish(next);
+	}
+
+	public synchronized boolean onAcknowledged(String purchaseToken) {
+		HashMap<String, Entitlement> next = new HashMap<>(byProduct);
+		for (Map.Entry<String, Entitlement> e : next.entrySet()) {
+			Entitlement entitlement = e.getValue();
+			if (entitlement.purchaseToken.equals(purchaseToken) && !entitlement.acknowledged) {
+				e.setValue(new Entitlement(entitlement, entitlement.productType, true, entitlement.missedQueries));
+			}
+		}
+		return publish(next);
+	}
+
+	// A consumed purchase is no longer owned.
+	public synchronized boolean onConsumed(String purchaseToken) {
+		HashMap<String, Entitlement> next = new HashMap<>(byProduct);
+		Iterator<Entitlement> it = next.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().purchaseToken.equals(purchaseToken)) {
+				it.remove();
+			}
+		}
+		return publish(next);
+	}
+
+	public synchronized boolean clear() {
+		return publish(new HashMap<String, Entitlement>());
+	}
+
+	// Several purchases can name the same product (a pending repurchase), the owned one wins.
+	private static void put(Map<String, Entitlement> map, Entitlement entitlement) {
+		Entitlement known = map.get(entitlement.productId);
+		if (known != null && known.isOwned() && !entitlement.isOwned() && !known.purchaseToken.equals(entitlement.purchaseToken)) {
+			return;
+		}
+		map.put(entitlement.productId, entitlement);
+	}
+
+	private static int missedBit(String type) {
+		return BillingClient.ProductType.SUBS.equals(type) ? MISSED_SUBS : MISSED_INAPP;
+	}
+
+	// Always publishes, types and missed queries are not part of the reported state.
+	private boolean publish(HashMap<String, Entitlement> next) {
+		Map<String, Entitlement> current = byProduct;
+		boolean changed = current.size() != next.size();
+		if (!changed) {
+			for (Entitlement entitlement : next.values()) {
+				Entitlement known = current.get(entitlement.productId);
+				if (known == null || !known.sameState(entitlement)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		byProduct = next;
+		return changed;
+	}
+}
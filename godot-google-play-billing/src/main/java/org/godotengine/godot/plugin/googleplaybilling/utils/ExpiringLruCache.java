@@ -0,0 +1,234 @@
+/*************************************************************************/
+/*  ExpiringLruCache.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded cache with per-entry expiry. Reads never lock: they only bump an
+// access stamp, and the least recently stamped entries are evicted by writers
+// once the cache grows past its limit.
+public class ExpiringLruCache<V> {
+	public interface RemovalListener<V> {
+		// Called for entries evicted, removed or cleared, not for values replaced by put.
+		void onRemoved(String key, V value);
+	}
+
+	private final ConcurrentHashMap<String, Node<V>> map = new ConcurrentHashMap<>();
+	private final AtomicLong accessClock = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile int maxEntries;
+	private volatile long ttlMillis;
+	private volatile RemovalListener<V> removalListener;
+
+	private static final class Node<V> {
+		final V value;
+		final long expiresAt;
+		volatile long lastAccess;
+
+		Node(V value, long expiresAt, long lastAccess) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private static final class Candidate<V> {
+		final String key;
+		final Node<V> node;
+		final long lastAccess;
+
+		Candidate(String key, Node<V> node) {
+			this.key = key;
+			this.node = node;
+			this.lastAccess = node.lastAccess;
+		}
+	}
+
+	// ttlMillis of 0 keeps entries until they are evicted.
+	public ExpiringLruCache(int maxEntries, long ttlMillis) {
+		configure(maxEntries, ttlMillis);
+	}
+
+	public void setRemovalListener(RemovalListener<V> removalListener) {
+		this.removalListener = removalListener;
+	}
+
+	public void configure(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlMillis = Math.max(0, ttlMillis);
+		if (map.size() > this.maxEntries) {
+			evict();
+		}
+	}
+
+	// Returns the value if present and not expired.
+	public V get(String key) {
+		Node<V> node = map.get(key);
+		if (node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (isExpired(node, now())) {
+			misses.incrementAndGet();
+			expirations.incrementAndGet();
+			return null;
+		}
+		node.lastAccess = accessClock.incrementAndGet();
+		hits.incrementAndGet();
+		return node.value;
+	}
+
+	// True if present and not expired, without touching the counters.
+	public boolean isFresh(String key) {
+		Node<V> node = map.get(key);
+		return node != null && !isExpired(node, now());
+	}
+
+	// Returns the value even if expired, without touching the counters.
+	public V getIgnoringExpiry(String key) {
+		Node<V> node = map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	public void put(String key, V value) {
+		long ttl = ttlMillis;
+		long expiresAt = ttl == 0 ? Long.MAX_VALUE : now() + ttl;
+		map.put(key, new Node<>(value, expiresAt, accessClock.incrementAndGet()));
+		if (map.size() > maxEntries) {
+			evict();
+		}
+	}
+
+	public void remove(String key) {
+		Node<V> node = map.remove(key);
+		if (node != null) {
+			notifyRemoved(key, node);
+		}
+	}
+
+	public void clear() {
+		for (Map.Entry<String, Node<V>> e : map.entrySet()) {
+			if (map.remove(e.getKey(), e.getValue())) {
+				notifyRemoved(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Dictionary getStats() {
+		Dictionary stats = new Dictionary();
+		stats.put("size", map.size());
+		stats.put("max_entries", maxEntries);
+		stats.put("ttl_ms", ttlMillis);
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("expired", expirations.get());
+		stats.put("evictions", evictions.get());
+		return stats;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private synchronized void evict() {
+		int limit = maxEntries;
+		if (map.size() <= limit) {
+			return;
+		}
+		long now = now();
+		// Expired entries go first, then the least recently used ones.
+		for (Map.Entry<String, Node<V>> e : map.entrySet()) {
+			if (isExpired(e.getValue(), now) && map.remove(e.getKey(), e.getValue())) {
+				evictions.incrementAndGet();
+				notifyRemoved(e.getKey(), e.getValue());
+			}
+		}
+		int excess = map.size() - limit;
+		if (excess <= 0) {
+			return;
+		}
+		// Evict a little more than needed so a full cache doesn't rescan on every put.
+		excess += limit / 16;
+		// Stamps are copied first, readers keep updating them while we sort.
+		List<Candidate<V>> lru = new ArrayList<>(map.size());
+		for (Map.Entry<String, Node<V>> e : map.entrySet()) {
+			lru.add(new Candidate<>(e.getKey(), e.getValue()));
+		}
+		Collections.sort(lru, new Comparator<Candidate<V>>() {
+			@Override
+			public int compare(Candidate<V> a, Candidate<V> b) {
+				return Long.compare(a.lastAccess, b.lastAccess);
+			}
+		});
+		for (int i = 0; i < lru.size() && excess > 0; i++) {
+			Candidate<V> candidate = lru.get(i);
+			if (map.remove(candidate.key, candidate.node)) {
+				evictions.incrementAndGet();
+				notifyRemoved(candidate.key, candidate.node);
+				excess -= 1;
+			}
+		}
+	}
+
+	private void notifyRemoved(String key, Node<V> node) {
+		RemovalListener<V> listener = removalListener;
+		if (listener != null) {
+			listener.onRemoved(key, node.value);
+		}
+	}
+
+	private static boolean isExpired(Node<?> node, long now) {
+		return now >= node.expiresAt;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
@@ -0,0 +1,63 @@
+/*************************************************************************/
+/*  FieldProjection.java                                                 */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Set of top-level dictionary keys a caller wants back. Keys outside the
+// projection are neither computed nor sent to Godot.
+public class FieldProjection {
+	public static final FieldProjection ALL = new FieldProjection(null);
+
+	private final Set<String> fields;
+
+	private FieldProjection(Set<String> fields) {
+		this.fields = fields;
+	}
+
+	// An empty or null list means every field.
+	public static FieldProjection of(String[] fields) {
+		if (fields == null || fields.length == 0) {
+			return ALL;
+		}
+		return new FieldProjection(new HashSet<>(Arrays.asList(fields)));
+	}
+
+	public boolean includes(String field) {
+		return fields == null || fields.contains(field);
+	}
+
+	public boolean isAll() {
+		return fields == null;
+	}
+}
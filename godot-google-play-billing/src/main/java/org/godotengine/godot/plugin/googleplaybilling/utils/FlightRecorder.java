@@ -0,0 +1,215 @@
+/*************************************************************************/
+/*  FlightRecorder.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Ring buffer of the last billing events, written out in the Chrome trace event format
+// (chrome://tracing, ui.perfetto.dev). Recording only fills preallocated slots with
+// references the caller already holds; details are turned into strings at dump time.
+public class FlightRecorder {
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int NO_CODE = Integer.MIN_VALUE;
+	private static final char BEGIN = 'b';
+	private static final char END = 'e';
+	private static final char INSTANT = 'i';
+
+	private final AtomicLong cursor = new AtomicLong();
+	private final AtomicInteger spanIds = new AtomicInteger();
+	private final long originNanos = System.nanoTime();
+	private volatile boolean enabled = true;
+	private volatile Slots slots;
+
+	// One array per field, so a recorded event allocates nothing. The sequence of a slot is
+	// published after its fields, a dump reads it before and after copying them.
+	private static final class Slots {
+		final int capacity;
+		final AtomicLongArray sequence;
+		final long[] timestampNanos;
+		final char[] phase;
+		final String[] category;
+		final String[] name;
+		final Object[] detail;
+		final int[] code;
+		final int[] spanId;
+		final long[] threadId;
+		final String[] threadName;
+
+		Slots(int capacity) {
+			this.capacity = capacity;
+			sequence = new AtomicLongArray(capacity);
+			timestampNanos = new long[capacity];
+			phase = new char[capacity];
+			category = new String[capacity];
+			name = new String[capacity];
+			detail = new Object[capacity];
+			code = new int[capacity];
+			spanId = new int[capacity];
+			threadId = new long[capacity];
+			threadName = new String[capacity];
+		}
+	}
+
+	public FlightRecorder(int capacity) {
+		setCapacity(capacity);
+	}
+
+	// Drops what was recorded so far; 0 turns recording off.
+	public synchronized void setCapacity(int capacity) {
+		enabled = capacity > 0;
+		slots = new Slots(Math.max(1, capacity));
+		cursor.set(0);
+	}
+
+	// Starts a span that may end on another thread, returns the id to pass to end().
+	public int begin(String category, String name, Object detail) {
+		int spanId = spanIds.incrementAndGet();
+		record(BEGIN, category, name, detail, NO_CODE, spanId);
+		return spanId;
+	}
+
+	public void end(String category, String name, int spanId, int code) {
+		record(END, category, name, null, code, spanId);
+	}
+
+	public void instant(String category, String name, Object detail, int code) {
+		record(INSTANT, category, name, detail, code, 0);
+	}
+
+	private void record(char phase, String category, String name, Object detail, int code, int spanId) {
+		if (!enabled) {
+			return;
+		}
+		Slots s = slots;
+		long sequence = cursor.incrementAndGet();
+		int i = (int)(sequence % s.capacity);
+		Thread thread = Thread.currentThread();
+		s.sequence.set(i, 0); // marks the slot as being written
+		s.timestampNanos[i] = System.nanoTime();
+		s.phase[i] = phase;
+		s.category[i] = category;
+		s.name[i] = name;
+		s.detail[i] = detail;
+		s.code[i] = code;
+		s.spanId[i] = spanId;
+		s.threadId[i] = thread.getId();
+		s.threadName[i] = thread.getName();
+		s.sequence.set(i, sequence);
+	}
+
+	// Writes the buffer to file, returns the number of events written.
+	public int dump(File file) throws IOException {
+		Slots s = slots;
+		long last = cursor.get();
+		long first = Math.max(1, last - s.capacity + 1);
+		JSONArray events = new JSONArray();
+		Map<Long, String> threads = new HashMap<>();
+		int count = 0;
+		try {
+			for (long sequence = first; sequence <= last; sequence++) {
+				int i = (int)(sequence % s.capacity);
+				// Overwritten or still being written since the dump started.
+				if (s.sequence.get(i) != sequence) {
+					continue;
+				}
+				long timestampNanos = s.timestampNanos[i];
+				char phase = s.phase[i];
+				String category = s.category[i];
+				String name = s.name[i];
+				Object detail = s.detail[i];
+				int code = s.code[i];
+				int spanId = s.spanId[i];
+				long threadId = s.threadId[i];
+				String threadName = s.threadName[i];
+				// Overwritten while it was copied.
+				if (s.sequence.get(i) != sequence) {
+					continue;
+				}
+				JSONObject event = new JSONObject();
+				event.put("name", name);
+				event.put("cat", category);
+				event.put("ph", String.valueOf(phase));
+				event.put("ts", (timestampNanos - originNanos) / 1000L);
+				event.put("pid", 1);
+				event.put("tid", threadId);
+				if (phase == INSTANT) {
+					event.put("s", "t");
+				} else {
+					event.put("id", spanId);
+				}
+				JSONObject args = new JSONObject();
+				if (detail != null) {
+					args.put("detail", String.valueOf(detail));
+				}
+				if (code != NO_CODE) {
+					args.put("response_code", code);
+					args.put("response_code_hint", GooglePlayBillingUtils.responseCodeHint(code));
+				}
+				args.put("thread", threadName);
+				event.put("args", args);
+				events.put(event);
+				threads.put(threadId, threadName);
+				count += 1;
+			}
+			for (Map.Entry<Long, String> thread : threads.entrySet()) {
+				JSONObject metadata = new JSONObject();
+				metadata.put("name", "thread_name");
+				metadata.put("ph", "M");
+				metadata.put("pid", 1);
+				metadata.put("tid", thread.getKey());
+				metadata.put("args", new JSONObject().put("name", thread.getValue()));
+				events.put(metadata);
+			}
+			JSONObject root = new JSONObject();
+			root.put("traceEvents", events);
+			root.put("displayTimeUnit", "ms");
+			try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+				out.write(root.toString());
+			}
+		} catch (JSONException e) {
+			throw new IOException("Unable to serialize the billing trace", e);
+		}
+		return count;
+	}
+}
@@ -39,33 +39,65 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class GooglePlayBillingUtils {
+	// Keys for the first pricing phases, so the common case doesn't build a string per phase.
+	private static final String[] PRICING_PHASE_KEYS = {
+		"pricing_phase_1", "pricing_phase_2", "pricing_phase_3", "pricing_phase_4",
+		"pricing_phase_5", "pricing_phase_6", "pricing_phase_7", "pricing_phase_8"
+	};
+
 	public static Dictionary convertPurchaseToDictionary(Purchase purchase) {
+		return convertPurchaseToDictionary(purchase, FieldProjection.ALL);
+	}
+
+	public static Dictionary convertPurchaseToDictionary(Purchase purchase, FieldProjection fields) {
 		Dictionary dictionary = new Dictionary();
-		dictionary.put("original_json", purchase.getOriginalJson());
-		dictionary.put("order_id", purchase.getOrderId());
-		dictionary.put("package_name", purchase.getPackageName());
-		dictionary.put("purchase_state", purchase.getPurchaseState());
-		dictionary.put("purchase_time", purchase.getPurchaseTime());
-		dictionary.put("purchase_token", purchase.getPurchaseToken());
-		dictionary.put("quantity", purchase.getQuantity());
-		dictionary.put("signature", purchase.getSignature());
+		if (fields.includes("original_json"))
+			dictionary.put("original_json", purchase.getOriginalJson());
+		if (fields.includes("order_id"))
+			dictionary.put("order_id", purchase.getOrderId());
+		if (fields.includes("package_name"))
+			dictionary.put("package_name", purchase.getPackageName());
+		if (fields.includes("purchase_state"))
+			dictionary.put("purchase_state", purchase.getPurchaseState());
+		if (fields.includes("purchase_time"))
+			dictionary.put("purchase_time", purchase.getPurchaseTime());
+		if (fields.includes("purchase_token"))
+			dictionary.put("purchase_token", purchase.getPurchaseToken());
+		if (fields.includes("quantity"))
+			dictionary.put("quantity", purchase.getQuantity());
+		if (fields.includes("signature"))
+			dictionary.put("signature", purchase.getSignature());
 		List<String> products = purchase.getProducts();
-		dictionary.put("product", products.get(0));
-		String[] productsArray = products.toArray(new String[0]);
-		dictionary.put("products", productsArray);
-		dictionary.put("is_acknowledged", purchase.isAcknowledged());
-		dictionary.put("is_auto_renewing", purchase.isAutoRenewing());
+		if (fields.includes("product"))
+			dictionary.put("product", products.get(0));
+		if (fields.includes("products")) {
+			String[] productsArray = products.toArray(new String[0]);
+			dictionary.put("products", productsArray);
+		}
+		if (fields.includes("is_acknowledged"))
+			dictionary.put("is_acknowledged", purchase.isAcknowledged());
+		if (fields.includes("is_auto_renewing"))
+			dictionary.put("is_auto_renewing", purchase.isAutoRenewing());
 		return dictionary;
 	}
 
 	public static Dictionary convertProductDetailsToDictionary(ProductDetails details) {
+		return convertProductDetailsToDictionary(details, FieldProjection.ALL);
+	}
+
+	public static Dictionary convertProductDetailsToDictionary(ProductDetails details, FieldProjection fields) {
 		Dictionary dictionary = new Dictionary();
-		dictionary.put("product_id", details.getProductId()); 
-		dictionary.put("product_name", details.getName());
-		dictionary.put("product_title", details.getTitle());
-		dictionary.put("product_description", details.getDescription());
-		dictionary.put("product_type", details.getProductType());
-		if (details.getSubscriptionOfferDetails() != null) { 
+		if (fields.includes("product_id"))
+			dictionary.put("product_id", details.getProductId());
+		if (fields.includes("product_name"))
+			dictionary.put("product_name", details.getName());
+		if (fields.includes("product_title"))
+			dictionary.put("product_title", details.getTitle());
+		if (fields.includes("product_description"))
+			dictionary.put("product_description", details.getDescription());
+		if (fields.includes("product_type"))
+			dictionary.put("product_type", details.getProductType());
+		if (details.getSubscriptionOfferDetails() != null && fields.includes("product_subs")) { 
 			List<ProductDetails.SubscriptionOfferDetails> subDetailsList = details.getSubscriptionOfferDetails();
 				Dictionary subDict = new Dictionary();
 				for (ProductDetails.SubscriptionOfferDetails subDetails : subDetailsList) {
@@ -87,38 +119,56 @@ public class GooglePlayBillingUtils {
 						phDetailsDict.put("billing_price_currency_codes", ph.getPriceCurrencyCode());
 						phDetailsDict.put("billing_recurrence_mode", ph.getRecurrenceMode());
 						phDetailsDict.put("billing_recurrence_mode_hint", GooglePlayBillingUtils.recurrenceModeHintGet(ph.getRecurrenceMode()));
-						pricingPhasesDict.put("pricing_phase_" + String.valueOf(phase), phDetailsDict);
+						pricingPhasesDict.put(pricingPhaseKey(phase), phDetailsDict);
 					}
 					subDetailsDict.put("offer_pricing_phases", pricingPhasesDict);
 					subDict.put(subDetails.getBasePlanId(), subDetailsDict);
 				}
 				dictionary.put("product_subs", subDict);
 		}
-		Dictionary otpoDict = new Dictionary();
 		ProductDetails.OneTimePurchaseOfferDetails otpoDetails = details.getOneTimePurchaseOfferDetails();
-		otpoDict.put("billing_price_formatted", otpoDetails.getFormattedPrice());
-		otpoDict.put("billing_price_amount_micros", otpoDetails.getPriceAmountMicros());
-		otpoDict.put("billing_price_currency_codes", otpoDetails.getPriceCurrencyCode());
-		dictionary.put("product_one_time_purchase_offer", otpoDict);
+		// Subscriptions have no one time offer
+		if (otpoDetails != null && fields.includes("product_one_time_purchase_offer")) {
+			Dictionary otpoDict = new Dictionary();
+			otpoDict.put("billing_price_formatted", otpoDetails.getFormattedPrice());
+			otpoDict.put("billing_price_amount_micros", otpoDetails.getPriceAmountMicros());
+			otpoDict.put("billing_price_currency_codes", otpoDetails.getPriceCurrencyCode());
+			dictionary.put("product_one_time_purchase_offer", otpoDict);
+		}
 		
 		return dictionary;
 	}
 
+	private static String pricingPhaseKey(int phase) {
+		if (phase <= PRICING_PHASE_KEYS.length) {
+			return PRICING_PHASE_KEYS[phase - 1];
+		}
+		return "pricing_phase_" + phase;
+	}
+
 
 	public static Object[] convertPurchaseListToDictionaryObjectArray(List<Purchase> purchases) {
+		return convertPurchaseListToDictionaryObjectArray(purchases, FieldProjection.ALL);
+	}
+
+	public static Object[] convertPurchaseListToDictionaryObjectArray(List<Purchase> purchases, FieldProjection fields) {
 		Object[] purchaseDictionaries = new Object[purchases.size()];
 
 		for (int i = 0; i < purchases.size(); i++) {
-			purchaseDictionaries[i] = GooglePlayBillingUtils.convertPurchaseToDictionary(purchases.get(i));
+			purchaseDictionaries[i] = GooglePlayBillingUtils.convertPurchaseToDictionary(purchases.get(i), fields);
 		}
 
 		return purchaseDictionaries;
 	}
 
 	public static Object[] convertProductDetailsListToDictionaryObjectArray(List<ProductDetails> pDetails) {
+		return convertProductDetailsListToDictionaryObjectArray(pDetails, FieldProjection.ALL);
+	}
+
+	public static Object[] convertProductDetailsListToDictionaryObjectArray(List<ProductDetails> pDetails, FieldProjection fields) {
 		Object[] pDetailsDictionaries = new Object[pDetails.size()];
 		for (int i = 0; i < pDetails.size(); i++) {
-			pDetailsDictionaries[i] = GooglePlayBillingUtils.convertProductDetailsToDictionary(pDetails.get(i));
+			pDetailsDictionaries[i] = GooglePlayBillingUtils.convertProductDetailsToDictionary(pDetails.get(i), fields);
 		}
 		return pDetailsDictionaries;
 	}
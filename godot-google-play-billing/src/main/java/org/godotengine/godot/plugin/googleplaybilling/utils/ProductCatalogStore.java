@@ -0,0 +1,318 @@
+/*************************************************************************/
+/*  ProductCatalogStore.java                                             */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+// On-disk snapshot of the last good product catalog, so the store can be
+// rendered (and purchase() resolved) before the first query round-trip.
+public class ProductCatalogStore {
+	private static final String TAG = "GodotGooglePlayBilling";
+	private static final String FILE_NAME = "godot_google_play_billing_catalog.json";
+	private static final int SNAPSHOT_VERSION = 1;
+	public static final long DEFAULT_TTL_MILLIS = 24L * 60L * 60L * 1000L;
+	// Least recently saved products are dropped past this.
+	public static final int MAX_ENTRIES = 2000;
+
+	private final Context context;
+	private final Executor ioExecutor;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+	private long ttlMillis = DEFAULT_TTL_MILLIS;
+	private boolean loaded;
+	// At most one save waits on the io thread, it writes whatever is current when it runs.
+	private boolean savePending;
+
+	private static class Entry {
+		final String productType;
+		final long savedAt;
+		final long ttl;
+		final Dictionary details;
+
+		Entry(String productType, long savedAt, long ttl, Dictionary details) {
+			this.productType = productType;
+			this.savedAt = savedAt;
+			this.ttl = ttl;
+			this.details = details;
+		}
+
+		boolean isExpired(long now) {
+			return now - savedAt > ttl;
+		}
+	}
+
+	public ProductCatalogStore(Context context, Executor ioExecutor) {
+		this.context = context.getApplicationContext();
+		this.ioExecutor = ioExecutor;
+	}
+
+	public synchronized void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	// Reads the snapshot in the background so the first lookup does not touch the disk.
+	public void preload() {
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ProductCatalogStore.this) {
+					ensureLoaded();
+				}
+			}
+		});
+	}
+
+	public synchronized void putAll(Object[] productDictionaries) {
+		ensureLoaded();
+		long now = System.currentTimeMillis();
+		for (Object o : productDictionaries) {
+			Dictionary details = (Dictionary)o;
+			String productId = (String)details.get("product_id");
+			entries.remove(productId);
+			entries.put(productId, new Entry((String)details.get("product_type"), now, ttlMillis, details));
+		}
+		Iterator<String> oldest = entries.keySet().iterator();
+		while (entries.size() > MAX_ENTRIES && oldest.hasNext()) {
+			oldest.next();
+			oldest.remove();
+		}
+		scheduleSave();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		loaded = true;
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				getFile().delete();
+			}
+		});
+	}
+
+	// Returns the product type of a non-expired snapshot entry, or null if unknown.
+	public synchronized String getProductType(String productId) {
+		ensureLoaded();
+		Entry entry = entries.get(productId);
+		if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+			return null;
+		}
+		return entry.productType;
+	}
+
+	// Non-expired dictionaries for the given ids, or for the whole snapshot if ids is empty.
+	public synchronized Object[] getProductDictionaries(String[] productIds) {
+		ensureLoaded();
+		long now = System.currentTimeMillis();
+		List<Object> result = new ArrayList<>();
+		if (productIds == null || productIds.length == 0) {
+			for (Entry entry : entries.values()) {
+				if (!entry.isExpired(now)) {
+					result.add(entry.details);
+				}
+			}
+		} else {
+			for (String productId : productIds) {
+				Entry entry = entries.get(productId);
+				if (entry != null && !entry.isExpired(now)) {
+					result.add(entry.details);
+				}
+			}
+		}
+		return result.toArray();
+	}
+
+	private File getFile() {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		File file = getFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			JSONObject root = new JSONObject(readFile(file));
+			if (root.optInt("version") != SNAPSHOT_VERSION) {
+				// Written by an incompatible plugin version; the next query rewrites it.
+				return;
+			}
+			long now = System.currentTimeMillis();
+			JSONArray products = root.getJSONArray("products");
+			for (int i = 0; i < products.length(); i++) {
+				JSONObject p = products.getJSONObject(i);
+				Entry entry = new Entry(p.getString("product_type"), p.getLong("saved_at"), p.getLong("ttl"),
+						jsonToDictionary(p.getJSONObject("details")));
+				if (!entry.isExpired(now)) {
+					entries.put((String)entry.details.get("product_id"), entry);
+				}
+			}
+		} catch (IOException | JSONException e) {
+			Log.w(TAG, "Discarding unreadable product catalog snapshot", e);
+			entries.clear();
+		}
+	}
+
+	private void scheduleSave() {
+		if (savePending) {
+			return;
+		}
+		savePending = true;
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Entry> snapshot;
+				synchronized (ProductCatalogStore.this) {
+					savePending = false;
+					snapshot = new ArrayList<>(entries.values());
+				}
+				try {
+					JSONObject root = new JSONObject();
+					root.put("version", SNAPSHOT_VERSION);
+					JSONArray products = new JSONArray();
+					for (Entry entry : snapshot) {
+						JSONObject p = new JSONObject();
+						p.put("product_type", entry.productType);
+						p.put("saved_at", entry.savedAt);
+						p.put("ttl", entry.ttl);
+						p.put("details", toJson(entry.details));
+						products.put(p);
+					}
+					root.put("products", products);
+					writeFileAtomically(getFile(), root.toString());
+				} catch (JSONException e) {
+					Log.w(TAG, "Unable to serialize product catalog snapshot", e);
+				}
+			}
+		});
+	}
+
+	private static void writeFileAtomically(File file, String content) {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(content.getBytes("UTF-8"));
+			out.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to write product catalog snapshot", e);
+			tmp.delete();
+			return;
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+		}
+	}
+
+	private static String readFile(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toString("UTF-8");
+		}
+	}
+
+	private static Object toJson(Object value) throws JSONException {
+		if (value instanceof Map) {
+			JSONObject object = new JSONObject();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet()) {
+				object.put((String)e.getKey(), toJson(e.getValue()));
+			}
+			return object;
+		}
+		if (value instanceof Object[]) {
+			JSONArray array = new JSONArray();
+			for (Object o : (Object[])value) {
+				array.put(toJson(o));
+			}
+			return array;
+		}
+		if (value instanceof List) {
+			JSONArray array = new JSONArray();
+			for (Object o : (List<?>)value) {
+				array.put(toJson(o));
+			}
+			return array;
+		}
+		return value == null ? JSONObject.NULL : value;
+	}
+
+	private static Dictionary jsonToDictionary(JSONObject object) throws JSONException {
+		Dictionary dictionary = new Dictionary();
+		Iterator<?> keys = object.keys();
+		while (keys.hasNext()) {
+			String key = (String)keys.next();
+			dictionary.put(key, fromJson(object.get(key)));
+		}
+		return dictionary;
+	}
+
+	private static Object fromJson(Object value) throws JSONException {
+		if (value instanceof JSONObject) {
+			return jsonToDictionary((JSONObject)value);
+		}
+		if (value instanceof JSONArray) {
+			// Only string lists (products, offer tags) are stored as arrays.
+			JSONArray array = (JSONArray)value;
+			String[] strings = new String[array.length()];
+			for (int i = 0; i < array.length(); i++) {
+				strings[i] = array.getString(i);
+			}
+			return strings;
+		}
+		return value == JSONObject.NULL ? null : value;
+	}
+}
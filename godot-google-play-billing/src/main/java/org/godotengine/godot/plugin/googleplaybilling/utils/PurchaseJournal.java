@@ -0,0 +1,262 @@
+/*************************************************************************/
+/*  PurchaseJournal.java                                                 */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Append-only journal of purchases that still need to be acknowledged or
+// consumed. Every record is fsync'd before the next one is written, so a
+// purchase delivered just before the game is killed is still known on the
+// next start. Finished purchases are dropped when the file is compacted.
+//
+// One JSON object per line:
+//   {"op":"add","token":...,"json":...,"sig":...,"t":...}
+//   {"op":"done","token":...}
+public class PurchaseJournal {
+	private static final String TAG = "GodotGooglePlayBilling";
+	private static final String FILE_NAME = "godot_google_play_billing_journal.log";
+	private static final int COMPACT_THRESHOLD = 64;
+
+	private final Context context;
+	private final Executor ioExecutor;
+	// Only touched on the IO executor.
+	private final LinkedHashMap<String, JSONObject> outstanding = new LinkedHashMap<>();
+	// Tokens already journaled, so repeated queries don't append the same purchase again.
+	private final Set<String> journaledTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final List<String> pendingLines = new ArrayList<>();
+	private boolean flushScheduled;
+	private boolean loaded;
+	private int finishedSinceCompaction;
+
+	public PurchaseJournal(Context context, Executor ioExecutor) {
+		this.context = context.getApplicationContext();
+		this.ioExecutor = ioExecutor;
+	}
+
+	public void load() {
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ensureLoaded();
+			}
+		});
+	}
+
+	// Records a purchase that has not been acknowledged or consumed yet.
+	public void recordPurchase(Purchase purchase) {
+		if (!journaledTokens.add(purchase.getPurchaseToken())) {
+			return;
+		}
+		try {
+			JSONObject record = new JSONObject();
+			record.put("op", "add");
+			record.put("token", purchase.getPurchaseToken());
+			record.put("json", purchase.getOriginalJson());
+			record.put("sig", purchase.getSignature());
+			record.put("t", System.currentTimeMillis());
+			append(record);
+		} catch (JSONException e) {
+			Log.w(TAG, "Unable to journal purchase", e);
+		}
+	}
+
+	// Marks a purchase as acknowledged or consumed.
+	public void recordFinished(String purchaseToken) {
+		if (!journaledTokens.remove(purchaseToken)) {
+			return;
+		}
+		try {
+			JSONObject record = new JSONObject();
+			record.put("op", "done");
+			record.put("token", purchaseToken);
+			append(record);
+		} catch (JSONException e) {
+			Log.w(TAG, "Unable to journal purchase", e);
+		}
+	}
+
+	public interface ReplayCallback {
+		void onOutstandingPurchases(List<Purchase> purchases);
+	}
+
+	// Calls back on the IO executor with the purchases still waiting to be finished.
+	public void replay(final ReplayCallback callback) {
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ensureLoaded();
+				List<Purchase> purchases = new ArrayList<>(outstanding.size());
+				for (JSONObject record : outstanding.values()) {
+					try {
+						purchases.add(new Purchase(record.getString("json"), record.optString("sig")));
+					} catch (JSONException e) {
+						Log.w(TAG, "Skipping unreadable journal record", e);
+					}
+				}
+				callback.onOutstandingPurchases(purchases);
+			}
+		});
+	}
+
+	private void append(JSONObject record) {
+		final String line = record.toString();
+		boolean schedule;
+		synchronized (pendingLines) {
+			pendingLines.add(line);
+			schedule = !flushScheduled;
+			flushScheduled = true;
+		}
+		if (schedule) {
+			ioExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	private void flush() {
+		ensureLoaded();
+		List<String> lines;
+		synchronized (pendingLines) {
+			lines = new ArrayList<>(pendingLines);
+			pendingLines.clear();
+			flushScheduled = false;
+		}
+		StringBuilder content = new StringBuilder();
+		for (String line : lines) {
+			try {
+				apply(new JSONObject(line));
+			} catch (JSONException e) {
+				continue;
+			}
+			content.append(line).append('\n');
+		}
+		try (FileOutputStream out = new FileOutputStream(getFile(), true)) {
+			out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to write purchase journal", e);
+		}
+		if (finishedSinceCompaction >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	private void apply(JSONObject record) {
+		String token = record.optString("token");
+		if ("add".equals(record.optString("op"))) {
+			outstanding.put(token, record);
+			journaledTokens.add(token);
+		} else if (outstanding.remove(token) != null) {
+			finishedSinceCompaction += 1;
+		}
+	}
+
+	private void compact() {
+		File file = getFile();
+		File tmp = new File(file.getPath() + ".tmp");
+		StringBuilder content = new StringBuilder();
+		for (JSONObject record : outstanding.values()) {
+			content.append(record.toString()).append('\n');
+		}
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to compact purchase journal", e);
+			tmp.delete();
+			return;
+		}
+		if (tmp.renameTo(file)) {
+			finishedSinceCompaction = 0;
+		} else {
+			tmp.delete();
+		}
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		File file = getFile();
+		if (!file.exists()) {
+			return;
+		}
+		boolean damaged = false;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try {
+					apply(new JSONObject(line));
+				} catch (JSONException e) {
+					// A torn last line after a crash, the records before it are still valid.
+					Log.w(TAG, "Skipping unreadable journal line");
+					damaged = true;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read purchase journal", e);
+			return;
+		}
+		// Rewrite a damaged file so new records are not appended to a torn line.
+		if (damaged || finishedSinceCompaction >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	private File getFile() {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+}
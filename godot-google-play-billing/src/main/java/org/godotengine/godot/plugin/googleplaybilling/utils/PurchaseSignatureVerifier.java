@@ -0,0 +1,162 @@
+/*************************************************************************/
+/*  PurchaseSignatureVerifier.java                                       */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Checks purchase signatures against the app's RSA public key (Play Console >
+// Monetization setup > Licensing). Results are remembered by purchase token together
+// with the signed data and signature they were computed for, lists are verified in
+// parallel on the given executor.
+public class PurchaseSignatureVerifier {
+	private static final String TAG = "GodotGooglePlayBilling";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	private static final int MAX_REMEMBERED_TOKENS = 1000;
+
+	public interface Callback {
+		// Purchase token -> signature is valid.
+		void onVerified(Map<String, Boolean> results);
+	}
+
+	private final PublicKey publicKey;
+	private final Executor executor;
+	private final ExpiringLruCache<Verified> verifiedTokens = new ExpiringLruCache<>(MAX_REMEMBERED_TOKENS, 0);
+
+	private static final class Verified {
+		final String signedData;
+		final String signature;
+		final boolean valid;
+
+		Verified(String signedData, String signature, boolean valid) {
+			this.signedData = signedData;
+			this.signature = signature;
+			this.valid = valid;
+		}
+	}
+
+	public PurchaseSignatureVerifier(String base64PublicKey, Executor executor) throws GeneralSecurityException {
+		byte[] decodedKey;
+		try {
+			decodedKey = Base64.decode(base64PublicKey, Base64.DEFAULT);
+		} catch (IllegalArgumentException e) {
+			throw new GeneralSecurityException("Invalid base64 public key", e);
+		}
+		this.publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(decodedKey));
+		this.executor = executor;
+	}
+
+	public boolean verify(Purchase purchase) {
+		Boolean known = getRemembered(purchase);
+		if (known != null) {
+			return known;
+		}
+		String signedData = purchase.getOriginalJson();
+		String signature = purchase.getSignature();
+		boolean valid = verifySignature(signedData, signature);
+		verifiedTokens.put(purchase.getPurchaseToken(), new Verified(signedData, signature, valid));
+		return valid;
+	}
+
+	// Only a result for the exact same data and signature counts, a token reused with
+	// altered data is verified again.
+	private Boolean getRemembered(Purchase purchase) {
+		Verified verified = verifiedTokens.get(purchase.getPurchaseToken());
+		if (verified == null || !TextUtils.equals(verified.signedData, purchase.getOriginalJson())
+				|| !TextUtils.equals(verified.signature, purchase.getSignature())) {
+			return null;
+		}
+		return verified.valid;
+	}
+
+	// Calls back once every purchase is verified, on the executor unless everything was already known.
+	public void verifyAll(final List<Purchase> purchases, final Callback callback) {
+		final Map<String, Boolean> results = new ConcurrentHashMap<>();
+		final AtomicInteger remaining = new AtomicInteger();
+		List<Purchase> unknown = new ArrayList<>();
+		for (Purchase purchase : purchases) {
+			Boolean known = getRemembered(purchase);
+			if (known != null) {
+				results.put(purchase.getPurchaseToken(), known);
+			} else {
+				unknown.add(purchase);
+			}
+		}
+		if (unknown.isEmpty()) {
+			callback.onVerified(results);
+			return;
+		}
+		remaining.set(unknown.size());
+		for (final Purchase purchase : unknown) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					results.put(purchase.getPurchaseToken(), verify(purchase));
+					if (remaining.decrementAndGet() == 0) {
+						callback.onVerified(results);
+					}
+				}
+			});
+		}
+	}
+
+	private boolean verifySignature(String signedData, String signature) {
+		if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+			return false;
+		}
+		try {
+			byte[] signatureBytes = Base64.decode(signature, Base64.DEFAULT);
+			Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+			verifier.initVerify(publicKey);
+			verifier.update(signedData.getBytes(StandardCharsets.UTF_8));
+			return verifier.verify(signatureBytes);
+		} catch (IllegalArgumentException | GeneralSecurityException e) {
+			Log.w(TAG, "Purchase signature verification failed", e);
+			return false;
+		}
+	}
+}
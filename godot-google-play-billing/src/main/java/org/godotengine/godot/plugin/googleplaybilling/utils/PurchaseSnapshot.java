@@ -0,0 +1,171 @@
+/*************************************************************************/
+/*  PurchaseSnapshot.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Last known purchases indexed by purchase token, used to report only what
+// changed since the previous query or update.
+public class PurchaseSnapshot {
+	public interface TypeResolver {
+		// Product type ("inapp" or "subs") of a product id, or null if unknown.
+		String getProductType(String productId);
+	}
+
+	public static class Delta {
+		public final List<Purchase> added = new ArrayList<>();
+		public final List<Purchase> changed = new ArrayList<>();
+		public final List<String> removed = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	private static final int MISSED_INAPP = 1;
+	private static final int MISSED_SUBS = 2;
+
+	private static final class Entry {
+		final String type;
+		final String productId;
+		final int purchaseState;
+		final boolean acknowledged;
+		final boolean autoRenewing;
+		// Product types queried without this purchase while its own type was unknown.
+		final int missedQueries;
+
+		Entry(String type, Purchase purchase) {
+			this.type = type;
+			this.productId = purchase.getProducts().get(0);
+			this.purchaseState = purchase.getPurchaseState();
+			this.acknowledged = purchase.isAcknowledged();
+			this.autoRenewing = purchase.isAutoRenewing();
+			this.missedQueries = 0;
+		}
+
+		Entry(Entry entry, String type, int missedQueries) {
+			this.type = type;
+			this.productId = entry.productId;
+			this.purchaseState = entry.purchaseState;
+			this.acknowledged = entry.acknowledged;
+			this.autoRenewing = entry.autoRenewing;
+			this.missedQueries = missedQueries;
+		}
+
+		boolean sameState(Purchase purchase) {
+			return purchaseState == purchase.getPurchaseState()
+					&& acknowledged == purchase.isAcknowledged()
+					&& autoRenewing == purchase.isAutoRenewing();
+		}
+	}
+
+	private final HashMap<String, Entry> byToken = new HashMap<>();
+	private final TypeResolver typeResolver;
+
+	public PurchaseSnapshot(TypeResolver typeResolver) {
+		this.typeResolver = typeResolver;
+	}
+
+	// A query returns every purchase of its type, so tokens of that type missing from it are removed.
+	// Tokens first seen in updates before their type was known get it resolved here; if it still
+	// isn't known, they are removed once both types were queried without them.
+	public synchronized Delta applyQuery(String type, List<Purchase> purchases) {
+		Delta delta = new Delta();
+		HashSet<String> seen = new HashSet<>();
+		for (Purchase purchase : purchases) {
+			seen.add(purchase.getPurchaseToken());
+			apply(type, purchase, delta);
+		}
+		Iterator<Map.Entry<String, Entry>> it = byToken.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			Entry entry = e.getValue();
+			if (seen.contains(e.getKey())) {
+				continue;
+			}
+			String entryType = entry.type != null ? entry.type : typeResolver.getProductType(entry.productId);
+			boolean gone;
+			if (entryType != null) {
+				gone = type.equals(entryType);
+				if (!gone && entry.type == null) {
+					e.setValue(new Entry(entry, entryType, 0));
+				}
+			} else {
+				int missed = entry.missedQueries | (BillingClient.ProductType.SUBS.equals(type) ? MISSED_SUBS : MISSED_INAPP);
+				gone = missed == (MISSED_INAPP | MISSED_SUBS);
+				if (!gone) {
+					e.setValue(new Entry(entry, null, missed));
+				}
+			}
+			if (gone) {
+				delta.removed.add(e.getKey());
+				it.remove();
+			}
+		}
+		return delta;
+	}
+
+	// Purchase updates only carry the purchases that changed, nothing is removed.
+	public synchronized Delta applyUpdate(List<Purchase> purchases) {
+		Delta delta = new Delta();
+		for (Purchase purchase : purchases) {
+			Entry known = byToken.get(purchase.getPurchaseToken());
+			String type = known != null ? known.type : typeResolver.getProductType(purchase.getProducts().get(0));
+			apply(type, purchase, delta);
+		}
+		return delta;
+	}
+
+	public synchronized void clear() {
+		byToken.clear();
+	}
+
+	private void apply(String type, Purchase purchase, Delta delta) {
+		String token = purchase.getPurchaseToken();
+		Entry known = byToken.get(token);
+		if (known == null) {
+			delta.added.add(purchase);
+		} else if (!known.sameState(purchase)) {
+			delta.changed.add(purchase);
+		} else if (known.type != null || type == null) {
+			return;
+		}
+		byToken.put(token, new Entry(type != null ? type : known != null ? known.type : null, purchase));
+	}
+}
@@ -0,0 +1,217 @@
+/*************************************************************************/
+/*  SubscriptionOfferIndex.java                                          */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Subscription offers by product, base plan and offer, with the cheapest offer per tag
+// worked out when the product details arrive, so picking an offer is a map lookup.
+// Play only returns the offers the user is eligible for, so every indexed offer is eligible.
+public class SubscriptionOfferIndex {
+	private final ConcurrentHashMap<String, ProductOffers> products = new ConcurrentHashMap<>();
+
+	public static final class Offer {
+		public final String productId;
+		public final String basePlanId;
+		public final String offerId; // "" for the base plan offer
+		public final String offerToken;
+		public final List<String> tags;
+		// First pricing phase, the price the user pays now (0 for free trials).
+		public final long firstPhasePriceMicros;
+		public final String firstPhaseFormattedPrice;
+		// Last pricing phase, the price once intro phases are over.
+		public final long recurringPriceMicros;
+		public final String priceCurrencyCode;
+		private final Dictionary dictionary;
+
+		Offer(String productId, ProductDetails.SubscriptionOfferDetails details) {
+			this.productId = productId;
+			this.basePlanId = details.getBasePlanId();
+			this.offerId = details.getOfferId() != null ? details.getOfferId() : "";
+			this.offerToken = details.getOfferToken();
+			this.tags = details.getOfferTags() != null ? details.getOfferTags() : Collections.<String>emptyList();
+			List<ProductDetails.PricingPhase> phases = details.getPricingPhases().getPricingPhaseList();
+			ProductDetails.PricingPhase first = phases.get(0);
+			ProductDetails.PricingPhase last = phases.get(phases.size() - 1);
+			this.firstPhasePriceMicros = first.getPriceAmountMicros();
+			this.firstPhaseFormattedPrice = first.getFormattedPrice();
+			this.recurringPriceMicros = last.getPriceAmountMicros();
+			this.priceCurrencyCode = first.getPriceCurrencyCode();
+			Dictionary dictionary = new Dictionary();
+			dictionary.put("product_id", productId);
+			dictionary.put("baseplan_id", basePlanId);
+			dictionary.put("offer_id", offerId);
+			dictionary.put("offer_token", offerToken);
+			dictionary.put("offer_tags", tags.toArray(new String[0]));
+			dictionary.put("first_phase_price_amount_micros", firstPhasePriceMicros);
+			dictionary.put("first_phase_price_formatted", firstPhaseFormattedPrice);
+			dictionary.put("recurring_price_amount_micros", recurringPriceMicros);
+			dictionary.put("recurring_price_formatted", last.getFormattedPrice());
+			dictionary.put("price_currency_code", priceCurrencyCode);
+			dictionary.put("pricing_phase_count", phases.size());
+			this.dictionary = dictionary;
+		}
+
+		// Cheaper now first, then cheaper once renewing.
+		boolean isCheaperThan(Offer other) {
+			if (firstPhasePriceMicros != other.firstPhasePriceMicros) {
+				return firstPhasePriceMicros < other.firstPhasePriceMicros;
+			}
+			return recurringPriceMicros < other.recurringPriceMicros;
+		}
+
+		// A copy, callers may modify it.
+		public Dictionary toDictionary() {
+			Dictionary copy = new Dictionary();
+			copy.putAll(dictionary);
+			return copy;
+		}
+	}
+
+	// Picks an offer of a product at purchase time.
+	public abstract static class Selector {
+		public abstract Offer select(SubscriptionOfferIndex index, String productId);
+
+		public static Selector exact(final String basePlanId, final String offerId) {
+			return new Selector() {
+				@Override
+				public Offer select(SubscriptionOfferIndex index, String productId) {
+					return index.getOffer(productId, basePlanId, offerId);
+				}
+			};
+		}
+
+		public static Selector cheapestWithTag(final String tag) {
+			return new Selector() {
+				@Override
+				public Offer select(SubscriptionOfferIndex index, String productId) {
+					return index.getCheapestOffer(productId, tag);
+				}
+			};
+		}
+	}
+
+	private static final class ProductOffers {
+		final ProductDetails source;
+		final List<Offer> offers = new ArrayList<>();
+		final HashMap<String, Offer> byKey = new HashMap<>();
+		final HashMap<String, Offer> cheapestByTag = new HashMap<>();
+		Offer cheapest;
+
+		ProductOffers(ProductDetails source) {
+			this.source = source;
+		}
+	}
+
+	// Replaces the offers of the product; products without subscription offers are dropped.
+	public void index(ProductDetails details) {
+		List<ProductDetails.SubscriptionOfferDetails> offerDetailsList = details.getSubscriptionOfferDetails();
+		if (offerDetailsList == null || offerDetailsList.isEmpty()) {
+			products.remove(details.getProductId());
+			return;
+		}
+		ProductOffers productOffers = new ProductOffers(details);
+		for (ProductDetails.SubscriptionOfferDetails offerDetails : offerDetailsList) {
+			Offer offer = new Offer(details.getProductId(), offerDetails);
+			productOffers.offers.add(offer);
+			productOffers.byKey.put(key(offer.basePlanId, offer.offerId), offer);
+			if (productOffers.cheapest == null || offer.isCheaperThan(productOffers.cheapest)) {
+				productOffers.cheapest = offer;
+			}
+			for (String tag : offer.tags) {
+				Offer cheapest = productOffers.cheapestByTag.get(tag);
+				if (cheapest == null || offer.isCheaperThan(cheapest)) {
+					productOffers.cheapestByTag.put(tag, offer);
+				}
+			}
+		}
+		// Published whole, readers never see a partly built product.
+		products.put(details.getProductId(), productOffers);
+	}
+
+	// Drops the offers of the product if they were indexed from these details, newer
+	// details indexed meanwhile are kept.
+	public void remove(ProductDetails details) {
+		ProductOffers productOffers = products.get(details.getProductId());
+		if (productOffers != null && productOffers.source == details) {
+			products.remove(details.getProductId(), productOffers);
+		}
+	}
+
+	public void clear() {
+		products.clear();
+	}
+
+	// offerId "" or null is the base plan offer.
+	public Offer getOffer(String productId, String basePlanId, String offerId) {
+		ProductOffers productOffers = products.get(productId);
+		if (productOffers == null) {
+			return null;
+		}
+		return productOffers.byKey.get(key(basePlanId, offerId != null ? offerId : ""));
+	}
+
+	// tag "" or null is the cheapest offer of the product.
+	public Offer getCheapestOffer(String productId, String tag) {
+		ProductOffers productOffers = products.get(productId);
+		if (productOffers == null) {
+			return null;
+		}
+		if (tag == null || tag.isEmpty()) {
+			return productOffers.cheapest;
+		}
+		return productOffers.cheapestByTag.get(tag);
+	}
+
+	public Object[] getOfferDictionaries(String productId) {
+		ProductOffers productOffers = products.get(productId);
+		if (productOffers == null) {
+			return new Object[0];
+		}
+		Object[] dictionaries = new Object[productOffers.offers.size()];
+		for (int i = 0; i < dictionaries.length; i++) {
+			dictionaries[i] = productOffers.offers.get(i).toDictionary();
+		}
+		return dictionaries;
+	}
+
+	private static String key(String basePlanId, String offerId) {
+		return basePlanId + '/' + offerId;
+	}
+}